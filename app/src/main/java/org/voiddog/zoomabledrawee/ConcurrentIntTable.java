@@ -0,0 +1,219 @@
+package org.voiddog.zoomabledrawee;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Key为int的并发哈希表
+ * 读操作不加锁也不分配内存，写操作之间互斥，平时的写操作也不分配内存，只有重建和清空的时候才会。
+ * key 和 value 分别放在两个数组里，写入的时候先写 key 再原子发布 value，
+ * 读线程先读 value 再读 key，看到 value 的时候一定也能看到对应的 key。
+ * 槽位的 key 一旦发布就不再改变，删除标记只能被同一个 key 复用，
+ * 否则读线程可能读到旧 key 的 value 再读到新的 key；删除标记在重建的时候统一清理
+ *
+ * @author agent
+ * @since 2026-10-18 06:33
+ */
+
+
+public class ConcurrentIntTable<T> {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    /**
+     * 槽位里的 key 已经被删除，线性探测时不能直接置空，只有同一个 key 可以复用
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * 开放寻址的哈希表，value 为 null 表示槽位从来没有用过
+     */
+    private static final class Table {
+        final int[] keys;
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    /**
+     * 扩容的时候整体替换
+     */
+    private volatile Table table;
+
+    /**
+     * 有效元素个数，和包括删除标记在内的占用个数，只在写锁里修改
+     */
+    private int count, used;
+
+    /**
+     * 重建或者清空的次数，只用于测试
+     */
+    int rebuildCount = 0;
+
+    public ConcurrentIntTable(){
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 无锁读取
+     * @param key
+     * @return 没有的话返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int key){
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask){
+            Object value = table.values.get(slot);
+            if(value == null){
+                return null;
+            }
+            if(table.keys[slot] == key){
+                return value == REMOVED ? null : (T) value;
+            }
+        }
+    }
+
+    /**
+     * @return 之前的值
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T put(int key, T value){
+        if(value == null){
+            return remove(key);
+        }
+
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        int slot = hash(key) & mask;
+        for(;; slot = (slot + 1) & mask){
+            Object pre = table.values.get(slot);
+            if(pre == null){
+                break;
+            }
+            if(table.keys[slot] == key){
+                // 同一个 key 的槽位，包括它自己的删除标记，读线程不会读错 key
+                table.values.set(slot, value);
+                if(pre == REMOVED){
+                    ++count;
+                    return null;
+                }
+                return (T) pre;
+            }
+        }
+
+        // 先写 key，value 的原子写入保证读线程看到 value 的时候 key 已经可见
+        table.keys[slot] = key;
+        table.values.set(slot, value);
+        ++used;
+        ++count;
+        if(used * 2 > table.keys.length){
+            rehash(count * 4 > table.keys.length ? table.keys.length * 2 : table.keys.length);
+        }
+        return null;
+    }
+
+    /**
+     * 已经存在的时候不替换
+     * @return 已经存在的值，不存在的时候放入并返回 null
+     */
+    public synchronized T putIfAbsent(int key, T value){
+        T pre = get(key);
+        if(pre != null){
+            return pre;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /**
+     * 只有当前值为 expect 的时候才删除
+     * @return 是否删除
+     */
+    public synchronized boolean remove(int key, T expect){
+        if(get(key) != expect){
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    /**
+     * @return 被删除的值
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T remove(int key){
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask){
+            Object value = table.values.get(slot);
+            if(value == null){
+                return null;
+            }
+            if(table.keys[slot] == key){
+                if(value == REMOVED){
+                    return null;
+                }
+                table.values.set(slot, REMOVED);
+                --count;
+                return (T) value;
+            }
+        }
+    }
+
+    public synchronized void clear(){
+        ++rebuildCount;
+        table = new Table(INITIAL_CAPACITY);
+        count = 0;
+        used = 0;
+    }
+
+    public synchronized int size(){
+        return count;
+    }
+
+    /**
+     * 重建哈希表，去掉删除标记，新表建好之后再整体发布，读线程仍然可以安全地读旧表
+     * @param capacity 2的幂
+     */
+    private void rehash(int capacity){
+        ++rebuildCount;
+        Table oldTable = table;
+        Table newTable = new Table(capacity);
+        int mask = capacity - 1;
+        for(int i = 0; i < oldTable.keys.length; ++i){
+            Object value = oldTable.values.get(i);
+            if(value == null || value == REMOVED){
+                continue;
+            }
+            int key = oldTable.keys[i];
+            int slot = hash(key) & mask;
+            while (newTable.values.get(slot) != null){
+                slot = (slot + 1) & mask;
+            }
+            newTable.keys[slot] = key;
+            newTable.values.set(slot, value);
+        }
+        used = count;
+        table = newTable;
+    }
+
+    /**
+     * 当前哈希表每个槽位的 key，从来没有用过的槽位为 null，只用于测试
+     */
+    synchronized Integer[] snapshotSlotKeys(){
+        Table table = this.table;
+        Integer[] keys = new Integer[table.keys.length];
+        for(int i = 0; i < keys.length; ++i){
+            keys[i] = table.values.get(i) == null ? null : table.keys[i];
+        }
+        return keys;
+    }
+
+    private static int hash(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
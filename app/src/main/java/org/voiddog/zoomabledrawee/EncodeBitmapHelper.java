@@ -4,29 +4,41 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Pair;
 import android.util.SparseArray;
 
+import com.facebook.binaryresource.BinaryResource;
+import com.facebook.binaryresource.FileBinaryResource;
+import com.facebook.cache.common.CacheKey;
 import com.facebook.common.references.CloseableReference;
+import com.facebook.common.util.UriUtil;
 import com.facebook.datasource.BaseDataSubscriber;
 import com.facebook.datasource.DataSource;
 import com.facebook.drawee.backends.pipeline.Fresco;
+import com.facebook.imagepipeline.cache.DefaultCacheKeyFactory;
 import com.facebook.imagepipeline.common.RotationOptions;
-import com.facebook.imagepipeline.core.DefaultExecutorSupplier;
+import com.facebook.imagepipeline.core.ImagePipelineFactory;
 import com.facebook.imagepipeline.memory.PooledByteBuffer;
-import com.facebook.imagepipeline.memory.PooledByteBufferInputStream;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequestBuilder;
-import com.facebook.imageutils.BitmapUtil;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 未解码的图片帮助
@@ -37,6 +49,56 @@ import java.security.PublicKey;
 
 
 public abstract class EncodeBitmapHelper {
+    /**
+     * 解码请求的优先级，可见的分块优先于预加载的分块，
+     * 高优先级用于马上就会显示的分块，比如双击缩放的目标
+     */
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+
+    /**
+     * 分块的位图格式策略，AUTO 表示 JPEG 这样不透明的图片使用 RGB_565，其余的使用 ARGB_8888
+     */
+    public static final int CONFIG_POLICY_ARGB_8888 = 0;
+    public static final int CONFIG_POLICY_RGB_565 = 1;
+    public static final int CONFIG_POLICY_AUTO = 2;
+
+    /**
+     * 高优先级的请求在多少帧之内不需要重复请求，覆盖双击缩放动画的时间
+     */
+    private static final int HIGH_PRIORITY_EXPIRE_FRAMES = 30;
+
+    /**
+     * 解码失败的分块第一次重试之前等待的帧数，之后每次失败翻倍
+     */
+    private static final int DECODE_RETRY_FRAMES = 30;
+
+    /**
+     * 同一个解码会话里一个分块最多失败的次数，超过之后直到安装新的会话都不再解码
+     */
+    private static final int MAX_DECODE_FAILURES = 3;
+
+    /**
+     * 下载过程中重建解码会话的最小间隔，ms
+     */
+    private static final long PROGRESSIVE_REBUILD_INTERVAL = 300;
+
+    /**
+     * 下载过程中可以解码的行数至少多出图片高度的几分之一才重建解码会话
+     */
+    private static final int PROGRESSIVE_REBUILD_DIVIDER = 8;
+
+    /**
+     * 同一行相邻的分块最多合并多少个一起解码
+     */
+    private static final int MAX_COALESCE_TILES = 4;
+
+    /**
+     * 默认离开窗口之后保留数据的时间，ms
+     */
+    private static final long DEFAULT_LINGER_TIME = 3000;
+
     /**
      * 位图分割大小
      */
@@ -45,7 +107,7 @@ public abstract class EncodeBitmapHelper {
     /**
      * 当前加载的图片
      */
-    private Uri currentUri;
+    private volatile Uri currentUri;
 
     /**
      * 位图缓存
@@ -53,32 +115,260 @@ public abstract class EncodeBitmapHelper {
     private LruSparseCache<Bitmap> bitmapCache;
 
     /**
-     * 未解码的图片
+     * 区域解码会话，持有未解码的图片
      */
-    private CountDownRef<CloseableReference<PooledByteBuffer>> encodeImageRef;
+    private volatile CountDownRef<RegionDecodeSession> decodeSessionRef;
 
     /**
-     * 线程池的提供者
+     * 全局解码调度器里属于当前视图的部分
      */
-    private DefaultExecutorSupplier executorSupplier;
+    private TileDecodeScheduler.Client decodeClient;
 
     /**
      * 原图大小
      */
-    private Pair<Integer, Integer> originBitmapSize;
+    private volatile Pair<Integer, Integer> originBitmapSize;
+
+    /**
+     * 从顶部开始已经可以解码的像素行数，图片还在下载的时候小于原图高度
+     */
+    private volatile int availableHeight;
+
+    /**
+     * 分块的解码状态表，去重和调度都以这里为准
+     * 没有记录即 ABSENT，之后的状态变化为 QUEUED → DECODING → READY / FAILED，
+     * 取消解码或者 READY 的分块被移出缓存之后删除记录，重新回到 ABSENT，之后再请求的时候重新解码；
+     * FAILED 的分块保留记录，按照退避的帧数重试，同一个会话里失败太多次之后等到安装新的会话再重试
+     */
+    private ConcurrentIntTable<DecodeRunnable> tileStates;
+
+    /**
+     * 分块的解码状态
+     */
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_DECODING = 2;
+    private static final int STATE_READY = 3;
+    private static final int STATE_FAILED = 4;
+
+    /**
+     * 每次安装解码会话加一，解码失败的分块在新的会话里重新计算失败次数
+     */
+    private volatile int sessionGeneration = 0;
+
+    /**
+     * 不同请求优先级之间的差距
+     */
+    private static final long CLASS_PRIORITY_WEIGHT = 1L << 26;
+
+    /**
+     * 不同缩放层级之间的优先级差距，保证当前层级的分块先解码
+     */
+    private static final long LEVEL_PRIORITY_WEIGHT = 1L << 20;
+
+    /**
+     * 最近一帧没有请求的分块的优先级惩罚
+     */
+    private static final long STALE_PRIORITY_WEIGHT = 1L << 40;
+
+    /**
+     * 当前视口的缩放指数和中心点，中心点为原图上的坐标
+     */
+    private volatile int viewportScaleExp;
+    private volatile float viewportCenterX, viewportCenterY;
+
+    /**
+     * 绘制的帧数，用于判断分块是否还在可视范围内，
+     * 超过一帧没有再被请求的分块不再解码
+     */
+    private volatile int frameCount = 0;
+
+    /**
+     * 每张图片最多并行解码的个数
+     */
+    private int maxDecoderCount;
+
+    /**
+     * 是否直接从本地文件或者磁盘缓存的文件解码，不在内存中持有未解码的图片
+     */
+    private boolean decodeFromFile = true;
+
+    /**
+     * 已解码分块的磁盘缓存，为 null 的时候不使用
+     */
+    private volatile TileDiskCache tileDiskCache;
+
+    /**
+     * 超大图片是否在后台生成金字塔，以及金字塔开始的层级
+     */
+    private boolean buildPyramid = false;
+    private int pyramidBaseScaleExp = 2;
+
+    private PyramidBuilder pyramidBuilder;
+
+    /**
+     * 位图格式策略，和当前图片实际使用的格式
+     */
+    private int configPolicy = CONFIG_POLICY_ARGB_8888;
+    private volatile Bitmap.Config tileConfig = Bitmap.Config.ARGB_8888;
+
+    /**
+     * 全局的分块内存管理，为 null 的时候使用固定的缓存大小
+     */
+    private volatile TileMemoryManager tileMemoryManager;
+
+    /**
+     * 切换图片或者离开窗口时保留分块的地方，为 null 的时候直接放入复用池
+     */
+    private volatile RetainedTileCache retainedTileCache;
+
+    /**
+     * 缓存中的分块属于哪张图片和图片内容的标记，安装第一个完整的解码会话的时候设置，
+     * 下载中的会话还不知道完整的内容，这时不使用磁盘缓存也不取回保留的分块
+     */
+    private Uri sessionUri;
+    private int contentStamp;
+
+    /**
+     * 离开窗口之后保留解码会话和分块缓存的时间，ms
+     */
+    private long lingerTime = DEFAULT_LINGER_TIME;
+
+    /**
+     * 已经离开窗口，但是还在保留数据等待重新进入窗口
+     */
+    private boolean isLingering = false;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Runnable lingerTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseLinger();
+        }
+    };
+
+    /**
+     * 视图是否显示在屏幕上，内存管理按照它分配预算
+     */
+    private volatile boolean isShown = false;
+
+    /**
+     * 由子分块缩小拼接父分块时使用
+     */
+    private final Paint derivePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 从合并解码的结果中切出分块时使用，直接覆盖复用的位图
+     */
+    private final Paint slicePaint = new Paint();
 
-    private SparseArray<DecodeRunnable> decodeRunnableSparseArray;
+    /**
+     * 移出缓存的分块，UI 线程无锁取到之后可能还在绘制，或者还在已经录制的 display list 里，
+     * 先放在 evictedBitmaps，下一帧开始的时候移到 retiringBitmaps，
+     * 再下一帧开始的时候上一帧已经画完并且不再引用它们，这时才放入复用池
+     */
+    private final ConcurrentLinkedQueue<Bitmap> evictedBitmaps = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Bitmap> retiringBitmaps = new ConcurrentLinkedQueue<>();
 
-    private boolean isAttached = false;
+    private volatile boolean isAttached = false;
 
     public EncodeBitmapHelper(int bitmapSegSize, long maxSize) {
         BITMAP_SEG_SIZE = bitmapSegSize;
         bitmapCache = new LruSparseCache<>(maxSize);
-        executorSupplier = new DefaultExecutorSupplier(getNumberOfCPUCores());
-        decodeRunnableSparseArray = new SparseArray<>();
+        // 被移除的分块在不会再被绘制之后放入复用池
+        bitmapCache.setOnEntryRemovedListener(new LruSparseCache.OnEntryRemovedListener<Bitmap>() {
+            @Override
+            public void onEntryRemoved(int key, Bitmap value) {
+                DecodeRunnable tile = tileStates.get(key);
+                if(tile != null && tile.state.get() == STATE_READY){
+                    tileStates.remove(key, tile);
+                }
+                if(isAttached){
+                    evictedBitmaps.add(value);
+                } else {
+                    TileBitmapPool.getInstance().put(value);
+                }
+            }
+        });
+        slicePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        bitmapCache.setEvictionPolicy(new ViewportEvictionPolicy());
+        decodeClient = TileDecodeScheduler.getInstance().newClient();
+        tileStates = new ConcurrentIntTable<>();
+        maxDecoderCount = getNumberOfCPUCores();
         isAttached = false;
     }
 
+    /**
+     * 设置每张图片最多并行解码的个数，每个解码器都有和图片数据大小相当的 native 开销，
+     * 实际个数还会按照图片数据大小和堆大小限制，大图片只会有一到两个，在下一次加载图片的时候生效
+     * @param maxDecoderCount 默认为 cpu 的个数
+     */
+    public synchronized void setMaxDecoderCount(int maxDecoderCount){
+        this.maxDecoderCount = Math.max(1, maxDecoderCount);
+    }
+
+    /**
+     * 设置是否直接从文件解码，file:// 的图片直接使用原文件，网络图片使用 Fresco 磁盘缓存中的文件，
+     * 找不到文件的时候仍然使用内存中未解码的图片，在下一次加载图片的时候生效
+     * @param decodeFromFile 默认为 true
+     */
+    public synchronized void setDecodeFromFile(boolean decodeFromFile){
+        this.decodeFromFile = decodeFromFile;
+    }
+
+    /**
+     * 设置已解码分块的磁盘缓存，解码之前先从这里查找，解码之后写入
+     * @param tileDiskCache 为 null 的时候不使用
+     */
+    public void setTileDiskCache(TileDiskCache tileDiskCache){
+        this.tileDiskCache = tileDiskCache;
+    }
+
+    /**
+     * 设置是否为超大图片在后台生成金字塔，需要设置了磁盘缓存，在下一次加载图片的时候生效
+     * @param buildPyramid 默认为 false
+     * @param baseScaleExp 金字塔从这一层开始生成，更精细的层级仍然使用区域解码
+     */
+    public synchronized void setBuildPyramid(boolean buildPyramid, int baseScaleExp){
+        this.buildPyramid = buildPyramid;
+        this.pyramidBaseScaleExp = Math.max(0, baseScaleExp);
+    }
+
+    /**
+     * 设置分块的位图格式策略，RGB_565 的分块只占一半的内存，同样大小的缓存可以放下两倍的分块，
+     * 在下一次加载图片的时候生效
+     * @param configPolicy {@link #CONFIG_POLICY_ARGB_8888}、{@link #CONFIG_POLICY_RGB_565} 或者 {@link #CONFIG_POLICY_AUTO}，
+     *                     默认为 {@link #CONFIG_POLICY_ARGB_8888}
+     */
+    public synchronized void setConfigPolicy(int configPolicy){
+        this.configPolicy = configPolicy;
+    }
+
+    /**
+     * 设置全局的分块内存管理，由它按照可见性和系统内存情况调整缓存大小
+     * @param tileMemoryManager 为 null 的时候使用构造时的缓存大小
+     */
+    public void setTileMemoryManager(TileMemoryManager tileMemoryManager){
+        this.tileMemoryManager = tileMemoryManager;
+    }
+
+    /**
+     * 设置跨图片保留的分块缓存，切换图片或者离开窗口的时候分块保留在这里，再次加载同一张图片时直接取回
+     * @param retainedTileCache 为 null 的时候不保留
+     */
+    public void setRetainedTileCache(RetainedTileCache retainedTileCache){
+        this.retainedTileCache = retainedTileCache;
+    }
+
+    /**
+     * 设置离开窗口之后保留未解码的图片、解码会话和分块缓存的时间，期间重新进入窗口不需要重新加载，
+     * 比如 ViewPager 翻过去又翻回来，超时或者内存紧张的时候释放
+     * @param lingerTime ms，默认 3000，0 表示离开窗口马上释放
+     */
+    public synchronized void setLingerTime(long lingerTime){
+        this.lingerTime = Math.max(0, lingerTime);
+    }
+
     public synchronized void setUri(Uri uri){
         if(uri == null || uri.equals(currentUri)){
             return;
@@ -90,7 +380,7 @@ public abstract class EncodeBitmapHelper {
     }
 
     public boolean isLoadingData(){
-        return !isAttached || encodeImageRef == null || originBitmapSize == null;
+        return !isAttached || decodeSessionRef == null || originBitmapSize == null;
     }
 
     public int getScaleExp(int key){
@@ -105,13 +395,138 @@ public abstract class EncodeBitmapHelper {
         return (scaleExp << 27) | (id & 0x07ffffff);
     }
 
+    /**
+     * 不加锁，可以在 UI 线程每一帧调用
+     * @param key
+     * @return
+     */
     public Bitmap getBitmap(int key){
         return bitmapCache.get(key);
     }
 
+    /**
+     * 每一帧开始的时候调用，之后这一帧没有再请求的分块会被取消解码
+     */
+    public void beginFrame(){
+        ++frameCount;
+        decodeClient.markActive();
+        retireEvictedBitmaps();
+    }
+
+    /**
+     * 每一帧开始的时候调用，上上一帧之前移出缓存的分块已经不会再被绘制
+     */
+    private void retireEvictedBitmaps(){
+        TileBitmapPool pool = TileBitmapPool.getInstance();
+        for(Bitmap bitmap = retiringBitmaps.poll(); bitmap != null; bitmap = retiringBitmaps.poll()){
+            pool.put(bitmap);
+        }
+        for(Bitmap bitmap = evictedBitmaps.poll(); bitmap != null; bitmap = evictedBitmaps.poll()){
+            retiringBitmaps.add(bitmap);
+        }
+    }
+
+    /**
+     * 不会再绘制的时候调用，比如离开窗口，或者已经不可见并且请求了重绘，
+     * 重绘的时候会重新录制 display list，不会再用到移出缓存的分块
+     */
+    private void recycleEvictedBitmaps(){
+        TileBitmapPool pool = TileBitmapPool.getInstance();
+        for(Bitmap bitmap = retiringBitmaps.poll(); bitmap != null; bitmap = retiringBitmaps.poll()){
+            pool.put(bitmap);
+        }
+        for(Bitmap bitmap = evictedBitmaps.poll(); bitmap != null; bitmap = evictedBitmaps.poll()){
+            pool.put(bitmap);
+        }
+    }
+
+    /**
+     * 视图显示或者不再显示在屏幕上的时候调用，离开窗口的时候自动设为 false
+     * @param isShown 是否显示在屏幕上
+     */
+    public void setShown(boolean isShown){
+        if(this.isShown == isShown){
+            return;
+        }
+        this.isShown = isShown;
+        TileMemoryManager manager = tileMemoryManager;
+        if(manager != null){
+            manager.notifyVisibilityChanged(this);
+        }
+    }
+
+    boolean isShown(){
+        return isShown;
+    }
+
+    /**
+     * 修改缓存大小，在锁里移除分块，和其他移除分块的地方保持一致
+     * @param maxSize
+     */
+    void resizeCache(long maxSize){
+        int removedCount;
+        synchronized (this){
+            removedCount = bitmapCache.resize(maxSize);
+        }
+        onCacheTrimmed(removedCount);
+    }
+
+    /**
+     * 清空分块缓存，之后需要的分块会重新解码
+     */
+    void clearCache(){
+        int removedCount;
+        synchronized (this){
+            removedCount = bitmapCache.getCount();
+            bitmapCache.clear();
+        }
+        onCacheTrimmed(removedCount);
+    }
+
+    /**
+     * 内存管理移除了分块，请求重绘重新请求需要的分块，
+     * 不显示的页面不会有下一帧，移除的分块直接放入复用池
+     * @param removedCount 移除的个数，没有移除的时候什么都不做
+     */
+    private void onCacheTrimmed(int removedCount){
+        if(removedCount == 0){
+            return;
+        }
+        onBitmapUpdate();
+        if(!isShown){
+            recycleEvictedBitmaps();
+        }
+    }
+
+    /**
+     * 每一帧绘制分块之前调用，更新解码队列的优先级
+     * @param scaleExp 当前的缩放指数
+     * @param centerX 视口中心在原图上的 x 坐标
+     * @param centerY 视口中心在原图上的 y 坐标
+     */
+    public void updateViewport(int scaleExp, float centerX, float centerY){
+        viewportScaleExp = scaleExp;
+        viewportCenterX = centerX;
+        viewportCenterY = centerY;
+    }
+
     public void addDecodeRegion(int key){
-        if(isLoadingData() || decodeRunnableSparseArray.get(key) != null){
-            // 加载数据中 或者 已近在解码队列中
+        addDecodeRegion(key, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * 请求解码分块
+     * @param key 分块
+     * @param priority {@link #PRIORITY_HIGH}、{@link #PRIORITY_VISIBLE} 或者 {@link #PRIORITY_PREFETCH}
+     */
+    public void addDecodeRegion(int key, int priority){
+        if(isLoadingData()){
+            // 加载数据中
+            return;
+        }
+
+        DecodeRunnable tile = tileStates.get(key);
+        if(tile != null && updateRequest(key, tile, priority)){
             return;
         }
 
@@ -123,12 +538,74 @@ public abstract class EncodeBitmapHelper {
         int left = (id % column) * bitmapSize, top = (id / column) * bitmapSize;
         Rect decodeRect = new Rect(left, top, left + bitmapSize, top + bitmapSize);
         if(left >= getOriginWidth() || top >= getOriginHeight()){
-            System.out.println("bad error");
+            // 超出原图范围的分块，没有需要解码的内容
+            return;
+        }
+        if(Math.min(decodeRect.bottom, getOriginHeight()) > availableHeight){
+            // 这部分数据还没有下载完
+            return;
+        }
+        DecodeRunnable decodeRunnable = new DecodeRunnable(key, decodeRect, scaleExp, currentUri, priority);
+        tile = tileStates.putIfAbsent(key, decodeRunnable);
+        if(tile != null){
+            // 别的线程刚刚加入了同一个分块
+            updateRequest(key, tile, priority);
             return;
         }
-        DecodeRunnable decodeRunnable = new DecodeRunnable(key, encodeImageRef, decodeRect, scaleExp, currentUri);
-        decodeRunnableSparseArray.append(key, decodeRunnable);
-        executorSupplier.forDecode().execute(decodeRunnable);
+        decodeClient.submit(decodeRunnable);
+    }
+
+    /**
+     * 分块已经有记录的时候更新请求
+     * @param key
+     * @param tile 状态表中的记录
+     * @param priority 这次请求的优先级
+     * @return 是否已经处理，false 表示需要重新解码
+     */
+    private boolean updateRequest(int key, DecodeRunnable tile, int priority){
+        switch (tile.state.get()){
+            case STATE_QUEUED:
+            case STATE_DECODING:
+                // 已近在解码队列中，标记这一帧还需要，同一帧内的多次请求取最高的优先级
+                if(tile.expireFrame <= frameCount || priority < tile.priority){
+                    tile.priority = priority;
+                }
+                tile.expireFrame = Math.max(tile.expireFrame, getExpireFrame(priority));
+                return true;
+            case STATE_FAILED:
+                if(tile.failedGeneration == sessionGeneration
+                        && (tile.failureCount >= MAX_DECODE_FAILURES || frameCount < tile.retryFrame)){
+                    // 还在退避，或者这个会话里已经失败太多次
+                    return true;
+                }
+                if(tile.state.compareAndSet(STATE_FAILED, STATE_QUEUED)){
+                    tile.priority = priority;
+                    tile.expireFrame = getExpireFrame(priority);
+                    decodeClient.submit(tile);
+                }
+                return true;
+            default:
+                // 已经解码完成但是被移出了缓存
+                tileStates.remove(key, tile);
+                return tileStates.get(key) != null;
+        }
+    }
+
+    /**
+     * @param priority 请求的优先级
+     * @return 这一帧的请求在哪一帧之后过期
+     */
+    private int getExpireFrame(int priority){
+        return frameCount + (priority == PRIORITY_HIGH ? HIGH_PRIORITY_EXPIRE_FRAMES : 1);
+    }
+
+    /**
+     * @return 缓存最多能同时放下的完整分块个数
+     */
+    public int getMaxCachedTileCount(){
+        int bytesPerPixel = tileConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        long tileByteCount = (long) BITMAP_SEG_SIZE * BITMAP_SEG_SIZE * bytesPerPixel;
+        return (int) (bitmapCache.getMaxSize() / tileByteCount);
     }
 
     public int getBitmapSegSize(int scaleExp){
@@ -143,8 +620,20 @@ public abstract class EncodeBitmapHelper {
         if(isAttached){
             return;
         }
-        isAttached = true;
-        attachOrDetach();
+        synchronized (this){
+            boolean wasLingering = isLingering;
+            isLingering = false;
+            handler.removeCallbacks(lingerTimeoutRunnable);
+            isAttached = true;
+            if(!wasLingering || isLoadingData() || availableHeight < getOriginHeight()){
+                // 保留的时候还没有加载完成，离开窗口期间的加载结果已经被丢弃，重新加载
+                attachOrDetach();
+            }
+        }
+        TileMemoryManager manager = tileMemoryManager;
+        if(manager != null){
+            manager.register(this);
+        }
     }
 
     public void detachFromWindow(){
@@ -152,24 +641,107 @@ public abstract class EncodeBitmapHelper {
             return;
         }
         isAttached = false;
-        attachOrDetach();
+        setShown(false);
+        // 离开窗口之后不会再绘制
+        recycleEvictedBitmaps();
+        synchronized (this){
+            if(lingerTime > 0 && currentUri != null){
+                // 很快可能重新进入窗口，先保留数据，保留期间仍然由内存管理分配预算
+                isLingering = true;
+                handler.postDelayed(lingerTimeoutRunnable, lingerTime);
+                return;
+            }
+            attachOrDetach();
+        }
+        TileMemoryManager manager = tileMemoryManager;
+        if(manager != null){
+            manager.unregister(this);
+        }
+    }
+
+    /**
+     * 结束离开窗口之后的保留，释放数据，超时或者内存紧张的时候调用
+     */
+    void releaseLinger(){
+        synchronized (this){
+            if(!isLingering){
+                return;
+            }
+            isLingering = false;
+            handler.removeCallbacks(lingerTimeoutRunnable);
+            clearAllData();
+        }
+        TileMemoryManager manager = tileMemoryManager;
+        if(manager != null){
+            manager.unregister(this);
+        }
     }
 
     protected void clearAllData(){
-        decodeRunnableSparseArray.clear();
-        bitmapCache.clear();
-        if(encodeImageRef != null){
-            encodeImageRef.release();
-            encodeImageRef = null;
+        decodeClient.clear();
+        if(pyramidBuilder != null){
+            pyramidBuilder.cancel();
+            pyramidBuilder = null;
+        }
+        tileStates.clear();
+        retainTiles();
+        originBitmapSize = null;
+        availableHeight = 0;
+        if(decodeSessionRef != null){
+            decodeSessionRef.release();
+            decodeSessionRef = null;
+        }
+    }
+
+    /**
+     * 清空缓存，设置了 {@link RetainedTileCache} 的时候把分块整组转移过去，需要在锁里调用
+     */
+    private void retainTiles(){
+        RetainedTileCache retained = retainedTileCache;
+        Uri uri = sessionUri;
+        sessionUri = null;
+        if(retained == null || uri == null){
+            bitmapCache.clear();
+            return;
+        }
+
+        final SparseArray<Bitmap> tiles = new SparseArray<>();
+        bitmapCache.clear(new LruSparseCache.OnEntryRemovedListener<Bitmap>() {
+            @Override
+            public void onEntryRemoved(int key, Bitmap value) {
+                tiles.put(key, value);
+            }
+        });
+        retained.put(uri, contentStamp, BITMAP_SEG_SIZE, tileConfig, tiles);
+    }
+
+    /**
+     * 取回之前保留的分块，需要在锁里调用
+     * @param uri
+     */
+    private void restoreTiles(Uri uri){
+        RetainedTileCache retained = retainedTileCache;
+        SparseArray<Bitmap> tiles = retained == null ? null : retained.take(uri, contentStamp, BITMAP_SEG_SIZE, tileConfig);
+        if(tiles == null){
+            return;
+        }
+        for(int i = 0, count = tiles.size(); i < count; ++i){
+            bitmapCache.put(tiles.keyAt(i), tiles.valueAt(i));
         }
     }
 
-    public synchronized int getOriginWidth(){
-        return originBitmapSize == null ? 0 : originBitmapSize.first;
+    /**
+     * 绘制的时候会调用，不加锁，避免 UI 线程等待解码线程
+     * @return
+     */
+    public int getOriginWidth(){
+        Pair<Integer, Integer> size = originBitmapSize;
+        return size == null ? 0 : size.first;
     }
 
-    public synchronized int getOriginHeight(){
-        return originBitmapSize == null ? 0 : originBitmapSize.second;
+    public int getOriginHeight(){
+        Pair<Integer, Integer> size = originBitmapSize;
+        return size == null ? 0 : size.second;
     }
 
     protected abstract void onBitmapUpdate();
@@ -180,21 +752,164 @@ public abstract class EncodeBitmapHelper {
             return;
         }
 
-        // 获取未解码的图片
+        // 打开渐进加载，下载过程中就可以拿到已经到达的数据
         ImageRequest encodeRequest = ImageRequestBuilder.newBuilderWithSource(currentUri)
                 .setRotationOptions(RotationOptions.autoRotate())
+                .setProgressiveRenderingEnabled(true)
                 .build();
-        DataSource<CloseableReference<PooledByteBuffer>> dataSource = Fresco.getImagePipeline().fetchEncodedImage(encodeRequest, this);
-        dataSource.subscribe(new EncodeDataSubscriber(currentUri), executorSupplier.forBackgroundTasks());
+        if(decodeFromFile){
+            // 查找磁盘缓存会读文件，放到后台线程
+            TileDecodeScheduler.getInstance().forBackgroundTasks().execute(new FileSessionLoader(currentUri, encodeRequest));
+        } else {
+            fetchEncodedImage(currentUri, encodeRequest);
+        }
     }
 
-    private static int sCpuSize = 0;
-
+    /**
+     * 获取未解码的图片
+     * @param uri
+     * @param encodeRequest
+     */
+    private synchronized void fetchEncodedImage(Uri uri, ImageRequest encodeRequest){
+        if(!isCurrentEncode(uri)){
+            return;
+        }
+        DataSource<CloseableReference<PooledByteBuffer>> dataSource = Fresco.getImagePipeline().fetchEncodedImage(encodeRequest, this);
+        dataSource.subscribe(new EncodeDataSubscriber(uri, encodeRequest), TileDecodeScheduler.getInstance().forBackgroundTasks());
+    }
+
+    /**
+     * 从文件创建解码会话
+     * @param encodeRequest
+     * @return 没有可用的文件的时候返回 null
+     */
+    private RegionDecodeSession createFileSession(ImageRequest encodeRequest){
+        File file = findEncodedFile(encodeRequest, this);
+        if(file == null){
+            return null;
+        }
+
+        int decoderCount;
+        synchronized (this){
+            decoderCount = maxDecoderCount;
+        }
+        try {
+            return RegionDecodeSession.create(file, decoderCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 查找未解码的图片文件，本地图片直接返回原文件，其余的在磁盘缓存中查找，会读文件，不要在 UI 线程调用
+     * @param encodeRequest
+     * @param callerContext
+     * @return 找不到的时候返回 null
+     */
+    private static File findEncodedFile(ImageRequest encodeRequest, Object callerContext){
+        if(UriUtil.isLocalFileUri(encodeRequest.getSourceUri())){
+            File file = encodeRequest.getSourceFile();
+            return file.exists() ? file : null;
+        }
+
+        CacheKey cacheKey = DefaultCacheKeyFactory.getInstance().getEncodedCacheKey(encodeRequest, callerContext);
+        BinaryResource resource = ImagePipelineFactory.getInstance().getMainFileCache().getResource(cacheKey);
+        if(resource instanceof FileBinaryResource){
+            return ((FileBinaryResource) resource).getFile();
+        }
+        return null;
+    }
+
+    /**
+     * 解码会话创建完成，替换掉之前的会话，已经解码的分块仍然有效
+     * @param uri 会话对应的图片
+     * @param session
+     * @param availableHeight 会话中从顶部开始可以解码的像素行数
+     */
+    private void installSession(Uri uri, RegionDecodeSession session, int availableHeight){
+        boolean isComplete = availableHeight >= session.getHeight();
+        int stamp = isComplete ? TileDiskCache.contentStamp(uri, session.getEncodeLength()) : 0;
+        synchronized (this) {
+            if (!isCurrentEncode(uri)) {
+                session.close();
+                return;
+            }
+            if(decodeSessionRef != null){
+                decodeSessionRef.release();
+            }
+            ++sessionGeneration;
+            decodeSessionRef = new CountDownRef<RegionDecodeSession>(session){
+                @Override
+                protected void releaseData(RegionDecodeSession value) {
+                    value.close();
+                }
+            };
+            originBitmapSize = new Pair<>(session.getWidth(), session.getHeight());
+            tileConfig = resolveConfig(session);
+            this.availableHeight = Math.min(availableHeight, session.getHeight());
+            if(isComplete && sessionUri == null){
+                // 第一个完整的会话，之前看过这张图片的话直接使用保留的分块
+                sessionUri = uri;
+                contentStamp = stamp;
+                restoreTiles(uri);
+            }
+            if(isComplete){
+                startPyramidBuilder(uri, session);
+            }
+        }
+
+        // 在等旧会话的解码器的任务现在可以用新会话解码了
+        decodeClient.notifyReady();
+        onBitmapUpdate();
+    }
+
+    /**
+     * @return 按照策略当前图片使用的位图格式
+     */
+    private Bitmap.Config resolveConfig(RegionDecodeSession session){
+        switch (configPolicy){
+            case CONFIG_POLICY_RGB_565:
+                return Bitmap.Config.RGB_565;
+            case CONFIG_POLICY_AUTO:
+                return session.isJpeg() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            default:
+                return Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    /**
+     * 完整的解码会话创建之后，需要的话开始生成金字塔
+     */
+    private void startPyramidBuilder(Uri uri, RegionDecodeSession session){
+        TileDiskCache diskCache = tileDiskCache;
+        if(!buildPyramid || diskCache == null || pyramidBuilder != null
+                || !PyramidBuilder.shouldBuild(session.getWidth(), session.getHeight())){
+            return;
+        }
+
+        PyramidBuilder builder = new PyramidBuilder(this, decodeSessionRef, diskCache,
+                TileDiskCache.hashUri(uri, contentStamp, BITMAP_SEG_SIZE, tileConfig), contentStamp,
+                pyramidBaseScaleExp, tileConfig);
+        if(builder.isBuilt()){
+            builder.cancel();
+            return;
+        }
+        pyramidBuilder = builder;
+        builder.start();
+    }
+
+    private boolean isCurrentEncode(Uri uri){
+        return uri.equals(currentUri) && isAttached;
+    }
+
+    private static int sCpuSize = 0;
+
     /**
      * 获取 cpu 的个数
      * @return
      */
-    private static int getNumberOfCPUCores() {
+    static int getNumberOfCPUCores() {
         if(sCpuSize != 0){
             return sCpuSize;
         }
@@ -229,50 +944,298 @@ public abstract class EncodeBitmapHelper {
         }
     };
 
+    /**
+     * 优先从文件创建解码会话，没有文件的时候再获取未解码的图片
+     */
+    private class FileSessionLoader implements Runnable {
+
+        private Uri encodeUri;
+
+        private ImageRequest encodeRequest;
+
+        private FileSessionLoader(Uri uri, ImageRequest encodeRequest){
+            this.encodeUri = uri;
+            this.encodeRequest = encodeRequest;
+        }
+
+        @Override
+        public void run() {
+            synchronized (EncodeBitmapHelper.this){
+                if(!isCurrentEncode(encodeUri)){
+                    return;
+                }
+            }
+
+            RegionDecodeSession session = createFileSession(encodeRequest);
+            if(session != null){
+                installSession(encodeUri, session, session.getHeight());
+            } else {
+                fetchEncodedImage(encodeUri, encodeRequest);
+            }
+        }
+    }
+
     private class EncodeDataSubscriber extends BaseDataSubscriber<CloseableReference<PooledByteBuffer>>{
 
         private Uri encodeUri;
 
-        public EncodeDataSubscriber(Uri uri){
+        private ImageRequest encodeRequest;
+
+        /**
+         * 下载过程中判断哪些行已经可以解码
+         */
+        private JpegProgressScanner progressScanner = new JpegProgressScanner();
+
+        /**
+         * 上一次创建会话时可以解码的行数和时间
+         */
+        private int lastAvailableRows = 0;
+        private long lastRebuildTime = 0;
+
+        /**
+         * 下载中的数据只追加新到达的部分到同一个临时文件，所有中间会话和最后的会话共用这个文件
+         */
+        private CountDownRef<File> progressiveFileRef;
+        private FileOutputStream progressiveOutput;
+
+        /**
+         * 已经写入临时文件的字节数
+         */
+        private int writtenLength = 0;
+
+        /**
+         * 临时文件写入失败之后不再尝试渐进加载
+         */
+        private boolean isProgressiveDisabled = false;
+
+        /**
+         * 已经处理过完整的数据，回调在多个后台线程上执行，之后才到的中间结果直接丢弃
+         */
+        private boolean isFinished = false;
+
+        public EncodeDataSubscriber(Uri uri, ImageRequest encodeRequest){
             encodeUri = uri;
+            this.encodeRequest = encodeRequest;
         }
 
         @Override
-        protected void onNewResultImpl(DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+        protected synchronized void onNewResultImpl(DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+            if(isFinished){
+                return;
+            }
             if(!dataSource.isFinished()){
+                onIntermediateResult(dataSource);
+                return;
+            }
+            isFinished = true;
+
+            CloseableReference<PooledByteBuffer> encodeRef = dataSource.getResult();
+            if(encodeRef == null){
+                releaseProgressiveFile();
                 return;
             }
 
+            boolean fromFile;
+            int decoderCount;
             synchronized (EncodeBitmapHelper.this) {
-                if (encodeUri.equals(currentUri)) {
-                    encodeImageRef = new CountDownRef<CloseableReference<PooledByteBuffer>>(dataSource.getResult()){
-                        @Override
-                        protected void releaseData(CloseableReference<PooledByteBuffer> value) {
-                            System.out.println("release: " + encodeUri);
-                            CloseableReference.closeSafely(value);
-                        }
-                    };
-                    try {
-                        InputStream is = new PooledByteBufferInputStream(encodeImageRef.get().get());
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        options.inJustDecodeBounds = true;
-                        originBitmapSize = BitmapUtil.decodeDimensions(is);
-                    } catch (Exception ignore){}
+                if (!isCurrentEncode(encodeUri)) {
+                    CloseableReference.closeSafely(encodeRef);
+                    releaseProgressiveFile();
+                    return;
                 }
+                fromFile = decodeFromFile;
+                decoderCount = maxDecoderCount;
             }
 
-            onBitmapUpdate();
+            // 下载完成之后磁盘缓存里可能已经有了文件，有的话就不再持有内存中的数据
+            RegionDecodeSession session = fromFile ? createFileSession(encodeRequest) : null;
+            if(session == null && progressiveFileRef != null && appendProgressiveFile(encodeRef.get())){
+                // 中间结果已经写了大部分，只需要补上剩下的
+                session = createProgressiveSession(decoderCount);
+            }
+            releaseProgressiveFile();
+            if(session != null){
+                CloseableReference.closeSafely(encodeRef);
+            } else {
+                // 只在这里解析一次图片头部，之后所有分块共用这个解码会话
+                try {
+                    session = RegionDecodeSession.create(encodeRef, decoderCount);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+
+            installSession(encodeUri, session, session.getHeight());
+        }
+
+        /**
+         * 下载中的数据，已经到达的行数多出一定的行数才用目前的数据重新创建会话，
+         * 只有可以按行判断的 JPEG 才会这样做，其余格式等待下载完成
+         * @param dataSource
+         */
+        private void onIntermediateResult(DataSource<CloseableReference<PooledByteBuffer>> dataSource){
+            if(isProgressiveDisabled){
+                return;
+            }
+            CloseableReference<PooledByteBuffer> partialRef = dataSource.getResult();
+            if(partialRef == null){
+                return;
+            }
+
+            try {
+                int availableRows = progressScanner.scan(partialRef.get());
+                // 每次重建都要重新解析头部，至少多出一行分块或者高度的八分之一才重建
+                int rebuildStep = Math.max(BITMAP_SEG_SIZE, progressScanner.getHeight() / PROGRESSIVE_REBUILD_DIVIDER);
+                long now = SystemClock.uptimeMillis();
+                if(availableRows - lastAvailableRows < rebuildStep
+                        || now - lastRebuildTime < PROGRESSIVE_REBUILD_INTERVAL){
+                    return;
+                }
+
+                int decoderCount;
+                synchronized (EncodeBitmapHelper.this) {
+                    if (!isCurrentEncode(encodeUri)) {
+                        return;
+                    }
+                    decoderCount = maxDecoderCount;
+                }
+
+                if(!appendProgressiveFile(partialRef.get())){
+                    return;
+                }
+                RegionDecodeSession session = createProgressiveSession(decoderCount);
+                if(session == null){
+                    return;
+                }
+                lastAvailableRows = availableRows;
+                lastRebuildTime = now;
+                installSession(encodeUri, session, availableRows);
+            } finally {
+                CloseableReference.closeSafely(partialRef);
+            }
+        }
+
+        /**
+         * 把临时文件里还没有的数据追加进去
+         * @param buffer 目前为止下载的数据
+         * @return 是否写入成功
+         */
+        private boolean appendProgressiveFile(PooledByteBuffer buffer){
+            if(isProgressiveDisabled || buffer.size() < writtenLength){
+                return false;
+            }
+            try {
+                if(progressiveFileRef == null){
+                    File file = RegionDecodeSession.createTempFile();
+                    progressiveFileRef = RegionDecodeSession.newTempFileRef(file);
+                    progressiveOutput = new FileOutputStream(file);
+                }
+                RegionDecodeSession.writeBuffer(buffer, writtenLength, progressiveOutput);
+                writtenLength = buffer.size();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                isProgressiveDisabled = true;
+                releaseProgressiveFile();
+                return false;
+            }
+        }
+
+        /**
+         * @return 头部还不完整之类的时候返回 null
+         */
+        private RegionDecodeSession createProgressiveSession(int decoderCount){
+            try {
+                return RegionDecodeSession.create(progressiveFileRef, decoderCount);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * 释放这里持有的临时文件，已经创建的会话各自持有，都关闭之后删除文件
+         */
+        private void releaseProgressiveFile(){
+            if(progressiveOutput != null){
+                try {
+                    progressiveOutput.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                progressiveOutput = null;
+            }
+            if(progressiveFileRef != null){
+                progressiveFileRef.release();
+                progressiveFileRef = null;
+            }
+        }
+
+        @Override
+        protected synchronized void onFailureImpl(DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+            isFinished = true;
+            releaseProgressiveFile();
         }
 
         @Override
-        protected void onFailureImpl(DataSource<CloseableReference<PooledByteBuffer>> dataSource) {}
+        public synchronized void onCancellation(DataSource<CloseableReference<PooledByteBuffer>> dataSource) {
+            isFinished = true;
+            releaseProgressiveFile();
+        }
     }
 
-    private class DecodeRunnable implements Runnable{
+    /**
+     * 按照和当前视口的距离淘汰分块，缩放层级相差越多、离视口中心越远越先移除，
+     * 避免缩放过程中刚刚离开的层级挤掉当前层级的分块
+     */
+    private class ViewportEvictionPolicy implements LruSparseCache.EvictionPolicy {
+        @Override
+        public long getEvictionScore(int key) {
+            int originWidth = getOriginWidth();
+            if(originWidth == 0){
+                return 0;
+            }
+
+            int scaleExp = getScaleExp(key);
+            int id = getId(key);
+            int bitmapSize = BITMAP_SEG_SIZE << scaleExp;
+            int column = originWidth / bitmapSize + (originWidth % bitmapSize == 0 ? 0 : 1);
+            float centerX = (id % column + 0.5f) * bitmapSize;
+            float centerY = (id / column + 0.5f) * bitmapSize;
+
+            int viewportScale = viewportScaleExp;
+            float tileSize = BITMAP_SEG_SIZE << viewportScale;
+            float dx = (centerX - viewportCenterX) / tileSize;
+            float dy = (centerY - viewportCenterY) / tileSize;
+            return Math.abs(scaleExp - viewportScale) * LEVEL_PRIORITY_WEIGHT
+                    + (long) Math.min(dx * dx + dy * dy, LEVEL_PRIORITY_WEIGHT - 1);
+        }
+    }
+
+    private class DecodeRunnable implements TileDecodeScheduler.Task{
 
         private int key;
 
-        private CountDownRef<CloseableReference<PooledByteBuffer>> encodeRef;
+        /**
+         * 超过这一帧之后就不再需要了
+         */
+        private volatile int expireFrame;
+
+        /**
+         * 请求的优先级
+         */
+        private volatile int priority;
+
+        /**
+         * 解码状态
+         */
+        private final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+
+        /**
+         * 开始解码的时候取当前的会话，下载过程中会话会被替换
+         */
+        private CountDownRef<RegionDecodeSession> sessionRef;
 
         private Rect decodeRect;
 
@@ -280,45 +1243,464 @@ public abstract class EncodeBitmapHelper {
 
         private Uri uri;
 
-        private DecodeRunnable(int key, CountDownRef<CloseableReference<PooledByteBuffer>> encodeRef, Rect decodeRect, int decodeScaleExp, Uri uri) {
+        /**
+         * 被相邻的分块合并解码时的结果
+         */
+        private Bitmap batchResult;
+
+        /**
+         * 开始解码的时候取当前图片的位图格式
+         */
+        private Bitmap.Config config;
+
+        /**
+         * 开始解码的时候取当前图片内容的标记，还没有完整的会话的时候不使用磁盘缓存
+         */
+        private boolean hasContentStamp;
+        private int stamp;
+
+        /**
+         * 开始解码时的会话代数，以及失败的次数、所在的会话代数和之后可以重试的帧，只在锁里修改
+         */
+        private int decodeGeneration;
+        private int failureCount;
+        private volatile int failedGeneration = -1;
+        private volatile int retryFrame;
+
+        private DecodeRunnable(int key, Rect decodeRect, int decodeScaleExp, Uri uri, int priority) {
             this.key = key;
-            this.encodeRef = encodeRef;
             this.decodeRect = decodeRect;
             this.decodeScaleExp = decodeScaleExp;
             this.uri = uri;
+            this.expireFrame = getExpireFrame(priority);
+            this.priority = priority;
+        }
+
+        /**
+         * 先按照请求的优先级，再按照缩放层级相差越多、距离视口中心越远优先级越低，已经不再请求的排在最后
+         * @return
+         */
+        @Override
+        public long getPriority() {
+            int scaleExp = viewportScaleExp;
+            float tileSize = BITMAP_SEG_SIZE << scaleExp;
+            float dx = (decodeRect.exactCenterX() - viewportCenterX) / tileSize;
+            float dy = (decodeRect.exactCenterY() - viewportCenterY) / tileSize;
+            long priority = this.priority * CLASS_PRIORITY_WEIGHT
+                    + Math.abs(decodeScaleExp - scaleExp) * LEVEL_PRIORITY_WEIGHT
+                    + (long) Math.min(dx * dx + dy * dy, LEVEL_PRIORITY_WEIGHT - 1);
+            if(expireFrame <= frameCount){
+                priority += STALE_PRIORITY_WEIGHT;
+            }
+            return priority;
+        }
+
+        /**
+         * 已经不在排队的直接执行，执行的时候马上返回；否则要等当前会话有空闲的解码器再执行
+         * @return
+         */
+        @Override
+        public boolean isReady() {
+            if(state.get() != STATE_QUEUED){
+                return true;
+            }
+            CountDownRef<RegionDecodeSession> ref = decodeSessionRef;
+            return ref == null || ref.get().hasFreeDecoder();
         }
 
         @Override
         public void run() {
+            if(!state.compareAndSet(STATE_QUEUED, STATE_DECODING)){
+                return;
+            }
+
             synchronized (EncodeBitmapHelper.this){
-                if(!isCurrentDecode()){
+                if(!isCurrentDecode() || isExpired() || decodeSessionRef == null){
+                    tileStates.remove(key, this);
                     return;
                 }
-                encodeRef.retian();
+                sessionRef = decodeSessionRef;
+                sessionRef.retian();
+                decodeGeneration = sessionGeneration;
+                config = tileConfig;
+                hasContentStamp = sessionUri != null;
+                stamp = contentStamp;
             }
 
+            List<DecodeRunnable> neighbors = null;
             Bitmap res = null;
+            BitmapRegionDecoder decoder = null;
+            List<Bitmap> unused = new ArrayList<>();
+            boolean isPublished = false;
+            boolean isRequeued = false;
+            boolean isUpdated = false;
             try {
-                InputStream is;
-                BitmapFactory.Options op = new BitmapFactory.Options();
-                op.inSampleSize = 1 << decodeScaleExp;
-                is = new PooledByteBufferInputStream(encodeRef.get().get());
-                decodeRect.right = decodeRect.right >= getOriginWidth() ? getOriginWidth()-1 : decodeRect.right;
-                decodeRect.bottom = decodeRect.bottom >= getOriginHeight() ? getOriginHeight()-1 : decodeRect.bottom;
-                res = BitmapRegionDecoder.newInstance(is, true).decodeRegion(decodeRect, op);
-            } catch (IOException e) {
+                RegionDecodeSession session = sessionRef.get();
+                decodeRect.right = decodeRect.right >= session.getWidth() ? session.getWidth() : decodeRect.right;
+                decodeRect.bottom = decodeRect.bottom >= session.getHeight() ? session.getHeight() : decodeRect.bottom;
+
+                // 依次尝试：由缓存中的子分块缩小拼接、磁盘缓存、区域解码，
+                // 新生成的分块在放入内存缓存之前写入磁盘缓存，之后位图可能会被复用
+                // 下载中的会话还不知道图片内容，不读写磁盘缓存
+                TileDiskCache diskCache = hasContentStamp ? tileDiskCache : null;
+                long uriHash = diskCache == null ? 0 : TileDiskCache.hashUri(uri, stamp, BITMAP_SEG_SIZE, config);
+                res = deriveFromChildren();
+                boolean isFromDisk = false;
+                if(res == null && diskCache != null){
+                    res = diskCache.get(uriHash, stamp, key);
+                    isFromDisk = res != null;
+                }
+                if(res == null){
+                    decoder = session.obtainDecoder();
+                    if(decoder == null && !session.isClosed()){
+                        // 调度器判断有空闲之后解码器又被别的线程借走了，放回队列等归还的时候再执行，不在这里等待
+                        isRequeued = true;
+                        return;
+                    }
+                }
+                if(decoder != null){
+                    // 先赋值再取得相邻的分块，中途出错的时候已经取得的也能被释放
+                    neighbors = new ArrayList<>();
+                    claimNeighbors(neighbors, session, diskCache, uriHash, stamp);
+                    try {
+                        res = neighbors.isEmpty() ? null : decodeBatch(decoder, neighbors);
+                    } catch (IllegalArgumentException e) {
+                        e.printStackTrace();
+                    } catch (OutOfMemoryError e) {
+                        // 合并的区域比较大，退回到单独解码
+                        e.printStackTrace();
+                    }
+                    if(res == null){
+                        res = decodeWithReuse(decoder, decodeRect);
+                    }
+                    recycleDecoder(session, decoder);
+                    decoder = null;
+                }
+                if(res != null && !isFromDisk && diskCache != null){
+                    diskCache.put(uriHash, stamp, key, res);
+                }
+                if(neighbors != null && diskCache != null){
+                    for(DecodeRunnable neighbor : neighbors){
+                        if(neighbor.batchResult != null){
+                            diskCache.put(uriHash, stamp, neighbor.key, neighbor.batchResult);
+                        }
+                    }
+                }
+
+                synchronized (EncodeBitmapHelper.this){
+                    if(publish(res)){
+                        isUpdated = true;
+                    } else if(res != null){
+                        unused.add(res);
+                    }
+                    if(neighbors != null){
+                        for(DecodeRunnable neighbor : neighbors){
+                            if(neighbor.batchResult == null){
+                                // 合并解码失败的时候相邻的分块还没有单独解码过，不算失败
+                                neighbor.discard();
+                            } else if(neighbor.publish(neighbor.batchResult)){
+                                isUpdated = true;
+                            } else {
+                                unused.add(neighbor.batchResult);
+                            }
+                            neighbor.batchResult = null;
+                        }
+                    }
+                    isPublished = true;
+                }
+            } catch (Throwable e) {
+                // OOM 之类的，当前分块按照失败退避，相邻的分块回到没有请求的状态
                 e.printStackTrace();
+            } finally {
+                if(decoder != null){
+                    recycleDecoder(sessionRef.get(), decoder);
+                }
+                synchronized (EncodeBitmapHelper.this){
+                    if(isRequeued){
+                        state.set(STATE_QUEUED);
+                    } else if(!isPublished){
+                        if(isCurrentDecode() && !isExpired()){
+                            markFailed();
+                        } else {
+                            discard();
+                        }
+                        if(res != null){
+                            unused.add(res);
+                        }
+                        if(neighbors != null){
+                            for(DecodeRunnable neighbor : neighbors){
+                                neighbor.discard();
+                                if(neighbor.batchResult != null){
+                                    unused.add(neighbor.batchResult);
+                                    neighbor.batchResult = null;
+                                }
+                            }
+                        }
+                    }
+                    sessionRef.release();
+                    sessionRef = null;
+                }
+                for(Bitmap bitmap : unused){
+                    TileBitmapPool.getInstance().put(bitmap);
+                }
+                if(isRequeued){
+                    decodeClient.submitBackground(this);
+                }
             }
 
+            if(isUpdated){
+                onBitmapUpdate();
+            }
+        }
+
+        /**
+         * 归还解码器，唤醒因为没有空闲的解码器而在等待的解码线程
+         */
+        private void recycleDecoder(RegionDecodeSession session, BitmapRegionDecoder decoder){
+            session.recycleDecoder(decoder);
+            decodeClient.notifyReady();
+        }
+
+        /**
+         * 放入缓存，需要在锁里调用
+         * @param res 解码结果，null 表示解码失败
+         * @return 是否放入了缓存
+         */
+        private boolean publish(Bitmap res){
+            if(!isCurrentDecode() || isExpired()){
+                // 解码过程中已经不需要的分块直接丢弃，避免挤掉有用的缓存
+                tileStates.remove(key, this);
+                return false;
+            }
+            if(res == null){
+                // 可能是暂时分配不到内存，也可能是这个区域一直解码不了，按照失败次数退避之后再重试
+                markFailed();
+                return false;
+            }
+            bitmapCache.put(key, res);
+            state.set(STATE_READY);
+            return true;
+        }
+
+        /**
+         * 放弃这个分块，之后再请求的时候重新解码
+         */
+        private void discard(){
+            tileStates.remove(key, this);
+        }
+
+        /**
+         * 解码失败，保留记录，等待退避的帧数之后再请求的时候重试，需要在锁里调用
+         */
+        private void markFailed(){
+            if(failedGeneration != decodeGeneration){
+                failureCount = 0;
+            }
+            ++failureCount;
+            failedGeneration = decodeGeneration;
+            retryFrame = frameCount + (DECODE_RETRY_FRAMES << (failureCount - 1));
+            state.set(STATE_FAILED);
+        }
+
+        /**
+         * 取得同一行左右相邻、还在排队的分块，和当前分块一起解码，
+         * 状态改为 DECODING 之后调度器再执行它们的时候会直接返回
+         * @param neighbors 放入从左到右排列的相邻分块，不包括当前分块
+         */
+        private void claimNeighbors(List<DecodeRunnable> neighbors, RegionDecodeSession session, TileDiskCache diskCache,
+                                    long uriHash, int stamp){
+            int id = getId(key);
+            int bitmapSize = BITMAP_SEG_SIZE << decodeScaleExp;
+            int column = session.getWidth() / bitmapSize + (session.getWidth() % bitmapSize == 0 ? 0 : 1);
+            int x = id % column;
+
+            // 先向右再向左
+            for(int dx = 1; x + dx < column && neighbors.size() + 1 < MAX_COALESCE_TILES; ++dx){
+                DecodeRunnable neighbor = claimNeighbor(id + dx, session, diskCache, uriHash, stamp);
+                if(neighbor == null){
+                    break;
+                }
+                neighbors.add(neighbor);
+            }
+            for(int dx = 1; x - dx >= 0 && neighbors.size() + 1 < MAX_COALESCE_TILES; ++dx){
+                DecodeRunnable neighbor = claimNeighbor(id - dx, session, diskCache, uriHash, stamp);
+                if(neighbor == null){
+                    break;
+                }
+                neighbors.add(0, neighbor);
+            }
+        }
+
+        /**
+         * @return 不能合并的时候返回 null
+         */
+        private DecodeRunnable claimNeighbor(int id, RegionDecodeSession session, TileDiskCache diskCache,
+                                             long uriHash, int stamp){
+            int neighborKey = getKey(decodeScaleExp, id);
+            DecodeRunnable neighbor = tileStates.get(neighborKey);
+            if(neighbor == null || neighbor.state.get() != STATE_QUEUED || neighbor.isExpired()
+                    || (diskCache != null && diskCache.contains(uriHash, stamp, neighborKey))){
+                // 已经在磁盘缓存中的分块单独读取更快
+                return null;
+            }
+            if(!neighbor.state.compareAndSet(STATE_QUEUED, STATE_DECODING)){
+                return null;
+            }
+            neighbor.decodeRect.right = Math.min(neighbor.decodeRect.right, session.getWidth());
+            neighbor.decodeRect.bottom = Math.min(neighbor.decodeRect.bottom, session.getHeight());
+            return neighbor;
+        }
+
+        /**
+         * 一次解码当前分块和相邻分块覆盖的整个区域，再切开
+         * @param neighbors 从左到右排列的相邻分块，切开的结果放在 batchResult 里
+         * @return 当前分块，解码失败的时候返回 null
+         */
+        private Bitmap decodeBatch(BitmapRegionDecoder decoder, List<DecodeRunnable> neighbors){
+            Rect stripRect = new Rect(decodeRect);
+            for(DecodeRunnable neighbor : neighbors){
+                stripRect.union(neighbor.decodeRect);
+            }
+
+            Bitmap strip = decodeWithReuse(decoder, stripRect);
+            if(strip == null){
+                return null;
+            }
+
+            Bitmap res = sliceStrip(strip, stripRect, decodeRect);
+            for(DecodeRunnable neighbor : neighbors){
+                neighbor.batchResult = sliceStrip(strip, stripRect, neighbor.decodeRect);
+            }
+            TileBitmapPool.getInstance().put(strip);
+            return res;
+        }
+
+        /**
+         * 从合并解码的结果中切出一个分块，优先使用复用池里的位图
+         * @return 超出解码结果范围的时候返回 null
+         */
+        private Bitmap sliceStrip(Bitmap strip, Rect stripRect, Rect tileRect){
+            int left = (tileRect.left - stripRect.left) >> decodeScaleExp;
+            int width = Math.min(Math.max(1, tileRect.width() >> decodeScaleExp), strip.getWidth() - left);
+            int height = strip.getHeight();
+            if(width <= 0){
+                return null;
+            }
+
+            Bitmap.Config config = strip.getConfig();
+            Bitmap tile = TileBitmapPool.getInstance().get(width, height, config);
+            try {
+                if(tile == null){
+                    tile = Bitmap.createBitmap(width, height, config);
+                }
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                return null;
+            }
+            new Canvas(tile).drawBitmap(strip, new Rect(left, 0, left + width, height), new Rect(0, 0, width, height), slicePaint);
+            return tile;
+        }
+
+        /**
+         * 下一层覆盖这个分块的子分块（最多四个）都在缓存中的时候，缩小一半拼接出这个分块，
+         * 在锁里绘制，避免子分块在绘制过程中被移出缓存并复用
+         * @return 子分块不全的时候返回 null
+         */
+        private Bitmap deriveFromChildren(){
+            if(decodeScaleExp == 0){
+                return null;
+            }
+
+            int childScaleExp = decodeScaleExp - 1;
+            int childSize = BITMAP_SEG_SIZE << childScaleExp;
+            int childColumn = getOriginWidth() / childSize + (getOriginWidth() % childSize == 0 ? 0 : 1);
+            int left = decodeRect.left / childSize, top = decodeRect.top / childSize;
+            int right = (decodeRect.right - 1) / childSize, bottom = (decodeRect.bottom - 1) / childSize;
+            int width = Math.max(1, decodeRect.width() >> decodeScaleExp);
+            int height = Math.max(1, decodeRect.height() >> decodeScaleExp);
+
             synchronized (EncodeBitmapHelper.this){
-                decodeRunnableSparseArray.remove(key);
-                if(isCurrentDecode()){
-                    bitmapCache.put(key, res);
+                Bitmap[] children = new Bitmap[4];
+                for(int y = top; y <= bottom; ++y){
+                    for(int x = left; x <= right; ++x){
+                        Bitmap child = bitmapCache.get(getKey(childScaleExp, y * childColumn + x));
+                        if(child == null){
+                            return null;
+                        }
+                        children[(y - top) * 2 + (x - left)] = child;
+                    }
                 }
-                encodeRef.release();
+
+                Bitmap parent = TileBitmapPool.getInstance().get(width, height, config);
+                try {
+                    if(parent == null){
+                        parent = Bitmap.createBitmap(width, height, config);
+                    } else {
+                        parent.eraseColor(0);
+                    }
+                } catch (OutOfMemoryError e) {
+                    e.printStackTrace();
+                    return null;
+                }
+
+                Canvas canvas = new Canvas(parent);
+                canvas.scale(0.5f, 0.5f);
+                for(int i = 0; i < children.length; ++i){
+                    if(children[i] != null){
+                        canvas.drawBitmap(children[i], (i % 2) * BITMAP_SEG_SIZE, (i / 2) * BITMAP_SEG_SIZE, derivePaint);
+                    }
+                }
+                return parent;
+            }
+        }
+
+        /**
+         * 优先使用复用池里大小一致的位图作为 inBitmap 解码
+         * @param decoder 从会话借出的解码器
+         * @param decodeRect 原图上的区域
+         * @return
+         */
+        private Bitmap decodeWithReuse(BitmapRegionDecoder decoder, Rect decodeRect){
+            BitmapFactory.Options op = new BitmapFactory.Options();
+            op.inSampleSize = 1 << decodeScaleExp;
+            op.inPreferredConfig = config;
+            if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN){
+                // BitmapRegionDecoder 在 4.1 之后才支持 inBitmap
+                return decoder.decodeRegion(decodeRect, op);
             }
 
-            onBitmapUpdate();
+            // 边缘上的分块比完整的分块小，按照解码后的实际大小去取，只复用同样大小的；
+            // BitmapRegionDecoder 不支持 inMutable，复用池里没有的时候也要自己分配可变的位图作为 inBitmap，
+            // 否则解码出来的位图不能放入复用池
+            int width = Math.max(1, decodeRect.width() >> decodeScaleExp);
+            int height = Math.max(1, decodeRect.height() >> decodeScaleExp);
+            Bitmap reuse = TileBitmapPool.getInstance().get(width, height, config);
+            if(reuse == null){
+                reuse = Bitmap.createBitmap(width, height, config);
+            }
+            op.inBitmap = reuse;
+
+            Bitmap res;
+            try {
+                res = decoder.decodeRegion(decodeRect, op);
+            } catch (IllegalArgumentException e) {
+                // 大小不符合复用的要求，放回复用池，不使用 inBitmap 重新解码
+                TileBitmapPool.getInstance().put(reuse);
+                op.inBitmap = null;
+                return decoder.decodeRegion(decodeRect, op);
+            }
+            if(res == null){
+                // 解码失败
+                TileBitmapPool.getInstance().put(reuse);
+            }
+            return res;
+        }
+
+        /**
+         * @return 最近一帧没有再请求这个分块，比如已经移出可视范围或者缩放层级已经变化
+         */
+        private boolean isExpired(){
+            return expireFrame < frameCount;
         }
 
         /**
@@ -326,7 +1708,7 @@ public abstract class EncodeBitmapHelper {
          * @return
          */
         private boolean isCurrentDecode(){
-            return uri.equals(currentUri) && isAttached;
+            return uri.equals(currentUri) && isAttached && tileStates.get(key) == this;
         }
     }
 }
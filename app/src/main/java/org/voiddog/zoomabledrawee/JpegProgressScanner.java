@@ -0,0 +1,272 @@
+package org.voiddog.zoomabledrawee;
+
+import com.facebook.imagepipeline.memory.PooledByteBuffer;
+
+/**
+ * 下载中的 JPEG 的可解码范围
+ * 只支持带有 restart 标记的 baseline JPEG，并且所有的分量在同一个 scan 里，
+ * 每出现一个 RSTn 标记说明前面一个 restart interval 的 MCU 已经完整到达，
+ * 据此算出从顶部开始已经可以完整解码的像素行数。
+ * 每次调用 {@link #scan(Source)} 只读取新到达的数据
+ *
+ * @author agent
+ * @since 2026-10-18 06:41
+ */
+
+
+public class JpegProgressScanner {
+
+    private static final int READ_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * 格式不支持
+     */
+    public static final int UNSUPPORTED = -1;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_EOI = 0xd9;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_DRI = 0xdd;
+    private static final int MARKER_SOF0 = 0xc0;
+    private static final int MARKER_SOF1 = 0xc1;
+    private static final int MARKER_DHT = 0xc4;
+    private static final int MARKER_DAC = 0xcc;
+    private static final int MARKER_RST0 = 0xd0;
+    private static final int MARKER_RST7 = 0xd7;
+
+    /**
+     * 目前为止下载的数据
+     */
+    public interface Source {
+        int size();
+
+        /**
+         * 读取 [offset, offset + length) 的数据
+         */
+        void read(int offset, byte[] buffer, int bufferOffset, int length);
+    }
+
+    private byte[] chunk = new byte[READ_CHUNK_SIZE];
+
+    /**
+     * 下一个需要读取的位置，头部解析完之前是下一个段的位置，之后是压缩数据中的位置
+     */
+    private int offset = 0;
+
+    private boolean isSupported = true;
+
+    private boolean isHeaderParsed = false;
+
+    private boolean isComplete = false;
+
+    private int width, height;
+
+    private int componentCount;
+
+    private int mcuWidth, mcuHeight;
+
+    private int restartInterval = 0;
+
+    /**
+     * 已经到达的 RSTn 标记个数
+     */
+    private int restartCount = 0;
+
+    /**
+     * 上一块数据以 0xFF 结尾，标记的第二个字节在下一块里
+     */
+    private boolean pendingMarker = false;
+
+    /**
+     * 读取新到达的数据
+     * @param buffer 目前为止下载的数据，每次调用都需要包含之前的数据
+     * @return 从顶部开始可以完整解码的像素行数，{@link #UNSUPPORTED} 表示格式不支持
+     */
+    public int scan(final PooledByteBuffer buffer){
+        return scan(new Source() {
+            @Override
+            public int size() {
+                return buffer.size();
+            }
+
+            @Override
+            public void read(int offset, byte[] bytes, int bufferOffset, int length) {
+                buffer.read(offset, bytes, bufferOffset, length);
+            }
+        });
+    }
+
+    /**
+     * 读取新到达的数据
+     * @param buffer 目前为止下载的数据，每次调用都需要包含之前的数据
+     * @return 从顶部开始可以完整解码的像素行数，{@link #UNSUPPORTED} 表示格式不支持
+     */
+    public int scan(Source buffer){
+        if(!isSupported){
+            return UNSUPPORTED;
+        }
+
+        int size = buffer.size();
+        if(!isHeaderParsed){
+            parseHeader(buffer, size);
+            if(!isSupported){
+                return UNSUPPORTED;
+            }
+            if(!isHeaderParsed){
+                return 0;
+            }
+        }
+
+        scanEntropyData(buffer, size);
+        return getAvailableRows();
+    }
+
+    public boolean isSupported(){
+        return isSupported;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getAvailableRows(){
+        if(!isHeaderParsed){
+            return 0;
+        }
+        if(isComplete){
+            return height;
+        }
+        int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        long mcuRows = (long) restartCount * restartInterval / mcusPerRow;
+        return (int) Math.min(height, mcuRows * mcuHeight);
+    }
+
+    /**
+     * 逐个解析 SOS 之前的段，数据不够的时候停在当前段，下一次继续
+     */
+    private void parseHeader(Source buffer, int size){
+        if(offset == 0){
+            if(size < 2){
+                return;
+            }
+            buffer.read(0, chunk, 0, 2);
+            if((chunk[0] & 0xff) != 0xff || (chunk[1] & 0xff) != MARKER_SOI){
+                isSupported = false;
+                return;
+            }
+            offset = 2;
+        }
+
+        while (offset + 4 <= size){
+            buffer.read(offset, chunk, 0, 4);
+            if((chunk[0] & 0xff) != 0xff){
+                isSupported = false;
+                return;
+            }
+            int marker = chunk[1] & 0xff;
+            if(marker == 0xff){
+                // 填充字节
+                ++offset;
+                continue;
+            }
+            int length = ((chunk[2] & 0xff) << 8) | (chunk[3] & 0xff);
+            if(length < 2){
+                isSupported = false;
+                return;
+            }
+            int segmentEnd = offset + 2 + length;
+            if(segmentEnd > size){
+                return;
+            }
+
+            if(marker == MARKER_SOF0 || marker == MARKER_SOF1){
+                if(!parseFrame(buffer, offset + 4, length - 2)){
+                    isSupported = false;
+                    return;
+                }
+            } else if(marker >= 0xc2 && marker <= 0xcf && marker != MARKER_DHT && marker != MARKER_DAC){
+                // progressive、lossless、算术编码等，不能按行判断
+                isSupported = false;
+                return;
+            } else if(marker == MARKER_DRI){
+                buffer.read(offset + 4, chunk, 0, 2);
+                restartInterval = ((chunk[0] & 0xff) << 8) | (chunk[1] & 0xff);
+            } else if(marker == MARKER_SOS){
+                buffer.read(offset + 4, chunk, 0, 1);
+                if(componentCount == 0 || restartInterval == 0 || (chunk[0] & 0xff) != componentCount){
+                    // 没有 restart 标记或者分量分开编码
+                    isSupported = false;
+                    return;
+                }
+                offset = segmentEnd;
+                isHeaderParsed = true;
+                return;
+            } else if(marker == MARKER_EOI){
+                isSupported = false;
+                return;
+            }
+            offset = segmentEnd;
+        }
+    }
+
+    /**
+     * 解析 SOF 段，计算 MCU 的大小
+     * @return 是否支持
+     */
+    private boolean parseFrame(Source buffer, int start, int length){
+        if(length < 6 || length > chunk.length){
+            return false;
+        }
+        buffer.read(start, chunk, 0, length);
+        height = ((chunk[1] & 0xff) << 8) | (chunk[2] & 0xff);
+        width = ((chunk[3] & 0xff) << 8) | (chunk[4] & 0xff);
+        componentCount = chunk[5] & 0xff;
+        if(width == 0 || height == 0 || componentCount == 0 || length < 6 + componentCount * 3){
+            return false;
+        }
+
+        int maxH = 1, maxV = 1;
+        for(int i = 0; i < componentCount; ++i){
+            int sampling = chunk[6 + i * 3 + 1] & 0xff;
+            maxH = Math.max(maxH, sampling >> 4);
+            maxV = Math.max(maxV, sampling & 0x0f);
+        }
+        // 只有一个分量的时候不交错编码，MCU 固定为 8x8
+        mcuWidth = componentCount == 1 ? 8 : 8 * maxH;
+        mcuHeight = componentCount == 1 ? 8 : 8 * maxV;
+        return true;
+    }
+
+    /**
+     * 统计压缩数据中的 RSTn 标记
+     */
+    private void scanEntropyData(Source buffer, int size){
+        while (!isComplete && offset < size){
+            int count = Math.min(chunk.length, size - offset);
+            buffer.read(offset, chunk, 0, count);
+            for(int i = 0; i < count; ++i){
+                int b = chunk[i] & 0xff;
+                if(!pendingMarker){
+                    pendingMarker = b == 0xff;
+                    continue;
+                }
+                if(b == 0xff){
+                    // 连续的填充字节
+                    continue;
+                }
+                pendingMarker = false;
+                if(b >= MARKER_RST0 && b <= MARKER_RST7){
+                    ++restartCount;
+                } else if(b == MARKER_EOI){
+                    isComplete = true;
+                    break;
+                }
+            }
+            offset += count;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package org.voiddog.zoomabledrawee;
 
 import android.graphics.Bitmap;
-import android.util.SparseArray;
 
-import java.lang.ref.WeakReference;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Key为int的 Lru queueCache
+ * 开放寻址的 int 哈希表 + 数组实现的双向链表，put/get/remove 都是 O(1)，
+ * 节点数组只在容量不够的时候扩容，平时的访问不会分配内存。
+ * get 不加锁，从 ConcurrentIntTable 里读取，访问记录先写到一个环形缓冲区，
+ * 在下一次写操作拿到锁的时候再统一更新 LRU 顺序，所以 UI 线程读取不会被解码线程阻塞。
+ * 设置了 {@link EvictionPolicy} 的时候，从最久没有访问的几个里面选分数最高的移除
  *
  * @author qigengxin
  * @since 2017-01-22 10:02
@@ -17,21 +21,46 @@ import java.util.Queue;
 
 public class LruSparseCache<T> {
 
-    private static class InnerSparseStruct<T>{
-        int lastAccessTime;
-        int key;
-        T value;
+    /**
+     * 缓存被移除的监听，可以用于复用被移除的数据
+     */
+    public interface OnEntryRemovedListener<T>{
+        void onEntryRemoved(int key, T value);
     }
 
     /**
-     * 下一次使用的时间
+     * 淘汰策略
      */
-    private int nextTimeCount = 0;
+    public interface EvictionPolicy {
+        /**
+         * 在锁里调用，需要很快
+         * @param key
+         * @return 越大越先被移除，相同的时候移除更久没有访问的
+         */
+        long getEvictionScore(int key);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
 
     /**
-     * 最大缓存大小，byte count
+     * 有淘汰策略的时候，从链表尾部取多少个比较
      */
-    private long maxSize;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /**
+     * 访问记录缓冲区大小，2的幂，写满之后丢弃最早的记录
+     */
+    private static final int ACCESS_BUFFER_SIZE = 128;
+
+    /**
+     * 空节点 / 空槽位
+     */
+    private static final int NONE = -1;
+
+    /**
+     * 最大缓存大小，byte count，只在锁里修改，读取不加锁
+     */
+    private volatile long maxSize;
 
     /**
      * 当前缓存占用大小
@@ -39,14 +68,49 @@ public class LruSparseCache<T> {
     private long size;
 
     /**
-     * key 到 value 的映射
+     * 当前缓存的个数
+     */
+    private int count;
+
+    /**
+     * 开放寻址的哈希表，存放节点的下标，长度为节点容量的两倍
+     */
+    private int[] table;
+
+    /**
+     * 节点数据，下标即节点
+     */
+    private int[] nodeKeys;
+    private int[] nodeSizes;
+    private int[] nodePrev;
+    private int[] nodeNext;
+    private Object[] nodeValues;
+
+    /**
+     * 链表头为最近访问的，链表尾为最久没有访问的
      */
-    private SparseArray<InnerSparseStruct<T>> keyToValue;
+    private int head = NONE, tail = NONE;
 
     /**
-     *
+     * 空闲节点链表，用 nodeNext 串起来
      */
-    private SparseArray<InnerSparseStruct<T>> timeToCountValue;
+    private int freeHead = NONE;
+
+    /**
+     * 给无锁读取用的表，和链表中的数据保持一致
+     */
+    private final ConcurrentIntTable<T> readTable = new ConcurrentIntTable<>();
+
+    /**
+     * 还没有更新到链表里的访问记录
+     */
+    private final AtomicIntegerArray accessBuffer = new AtomicIntegerArray(ACCESS_BUFFER_SIZE);
+    private final AtomicInteger accessWriteIndex = new AtomicInteger();
+    private int accessReadIndex = 0;
+
+    private OnEntryRemovedListener<T> onEntryRemovedListener;
+
+    private EvictionPolicy evictionPolicy;
 
     public LruSparseCache(long maxSize){
         if(maxSize <= 0){
@@ -54,66 +118,139 @@ public class LruSparseCache<T> {
         }
 
         this.maxSize = maxSize;
-        keyToValue = new SparseArray<>();
-        timeToCountValue = new SparseArray<>();
+        nodeKeys = new int[0];
+        nodeSizes = new int[0];
+        nodePrev = new int[0];
+        nodeNext = new int[0];
+        nodeValues = new Object[0];
+        growNodes(INITIAL_CAPACITY);
     }
 
-    public synchronized void put(int key, T value){
-        InnerSparseStruct<T> innerValue = keyToValue.get(key);
-        T preValue = null;
-        if(innerValue != null){
-            timeToCountValue.remove(innerValue.lastAccessTime);
-            preValue = innerValue.value;
-        } else {
-            innerValue = new InnerSparseStruct<>();
-        }
-        innerValue.value = value;
-        innerValue.key = key;
-        innerValue.lastAccessTime = nextTimeCount++;
+    public synchronized void setOnEntryRemovedListener(OnEntryRemovedListener<T> onEntryRemovedListener) {
+        this.onEntryRemovedListener = onEntryRemovedListener;
+    }
 
-        if(preValue != null){
-            size -= sizeOf(key, preValue);
+    /**
+     * @param evictionPolicy 为 null 的时候只按照访问顺序移除
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * 不加锁，绘制的时候会调用
+     * @return
+     */
+    public long getMaxSize(){
+        return maxSize;
+    }
+
+    /**
+     * 修改最大缓存大小，变小的时候马上移除多出来的
+     * @param maxSize
+     * @return 移除的个数
+     */
+    public synchronized int resize(long maxSize){
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("queueCache size must be positive");
         }
 
+        drainAccessBuffer();
+        this.maxSize = maxSize;
+        return trimToSize(maxSize);
+    }
+
+    /**
+     * @return 缓存中的个数
+     */
+    public synchronized int getCount(){
+        return count;
+    }
+
+    public synchronized void put(int key, T value){
         if(value == null){
-            keyToValue.remove(key);
+            remove(key);
             return;
         }
 
-        size += sizeOf(key, value);
-        keyToValue.put(key, innerValue);
-        timeToCountValue.put(innerValue.lastAccessTime, innerValue);
+        drainAccessBuffer();
+        int valueSize = sizeOf(key, value);
+        int node = findNode(key);
+        if(node != NONE){
+            T preValue = valueOf(node);
+            size += valueSize - nodeSizes[node];
+            nodeValues[node] = value;
+            nodeSizes[node] = valueSize;
+            moveToHead(node);
+            if(preValue != value){
+                entryRemoved(key, preValue);
+            }
+        } else {
+            node = obtainNode();
+            nodeKeys[node] = key;
+            nodeValues[node] = value;
+            nodeSizes[node] = valueSize;
+            insertIntoTable(node);
+            linkHead(node);
+            size += valueSize;
+            ++count;
+        }
+        readTable.put(key, value);
 
         trimToSize(maxSize);
     }
 
     public synchronized void clear(){
-        keyToValue.clear();
-        timeToCountValue.clear();
-        nextTimeCount = 0;
+        clear(onEntryRemovedListener);
+    }
+
+    /**
+     * 清空，被移除的数据交给 receiver 而不是设置的监听，比如需要整体转移到别的地方的时候
+     * @param receiver
+     */
+    public synchronized void clear(OnEntryRemovedListener<T> receiver){
+        for(int node = head; node != NONE; node = nodeNext[node]){
+            T value = valueOf(node);
+            if(receiver != null && value != null){
+                receiver.onEntryRemoved(nodeKeys[node], value);
+            }
+        }
+        readTable.clear();
+        Arrays.fill(table, NONE);
+        Arrays.fill(nodeValues, null);
+        head = tail = NONE;
+        freeHead = NONE;
+        for(int i = nodeKeys.length - 1; i >= 0; --i){
+            nodeNext[i] = freeHead;
+            freeHead = i;
+        }
+        count = 0;
         size = 0;
+        accessReadIndex = accessWriteIndex.get();
     }
 
-    public synchronized T get(int key){
-        InnerSparseStruct<T> ret = keyToValue.get(key);
-        if(ret != null){
-            timeToCountValue.remove(ret.lastAccessTime);
-            ret.lastAccessTime = nextTimeCount++;
-            timeToCountValue.append(ret.lastAccessTime, ret);
-            return ret.value;
+    /**
+     * 不加锁，访问顺序延迟到下一次写操作的时候更新
+     * @param key
+     * @return
+     */
+    public T get(int key){
+        T value = readTable.get(key);
+        if(value != null){
+            int index = accessWriteIndex.getAndIncrement();
+            accessBuffer.set(index & (ACCESS_BUFFER_SIZE - 1), key);
         }
-        return null;
+        return value;
     }
 
     public synchronized void remove(int key){
-        InnerSparseStruct<T> remove = keyToValue.get(key);
-        if (remove != null){
-            size -= sizeOf(key, remove.value);
-            keyToValue.remove(key);
-            timeToCountValue.remove(remove.lastAccessTime);
+        drainAccessBuffer();
+        int node = findNode(key);
+        if(node != NONE){
+            T value = valueOf(node);
+            removeNode(node);
+            entryRemoved(key, value);
         }
-
-        trimToSize(maxSize);
     }
 
     protected int sizeOf(int key, T value){
@@ -122,34 +259,216 @@ public class LruSparseCache<T> {
         }
 
         if(value instanceof Bitmap){
-            System.out.println("size of bitmap: " + ((Bitmap) value).getWidth() + ", " + ((Bitmap) value).getByteCount());
             return ((Bitmap) value).getByteCount();
         }
 
         return 0;
     }
 
-    private synchronized void trimToSize(long maxSize){
+    /**
+     * @return 移除的个数
+     */
+    private synchronized int trimToSize(long maxSize){
+        int removedCount = 0;
         for(;;){
-            if (size < 0 || (keyToValue.size() == 0 && size != 0)){
+            if (size < 0 || (count == 0 && size != 0)){
                 throw new IllegalArgumentException(".sizeOf() is reporting inconsistent results!");
             }
 
-            if(keyToValue.size() != timeToCountValue.size()){
-                throw new IllegalArgumentException("the size of two sparseArray not same");
+            if (size < maxSize || count == 0){
+                return removedCount;
             }
 
-            if (size < maxSize || keyToValue.size() == 0){
-                break;
+            int node = selectVictim();
+            int key = nodeKeys[node];
+            T value = valueOf(node);
+            removeNode(node);
+            entryRemoved(key, value);
+            ++removedCount;
+        }
+    }
+
+    /**
+     * 选出需要移除的节点，没有淘汰策略的时候就是链表尾；
+     * 否则比较链表尾部的几个，刚刚放入的链表头不参与比较
+     * @return
+     */
+    private int selectVictim(){
+        if(evictionPolicy == null || count == 1){
+            return tail;
+        }
+
+        int victim = tail;
+        long bestScore = Long.MIN_VALUE;
+        int node = tail;
+        for(int i = 0; i < EVICTION_SAMPLE_SIZE && node != NONE && node != head; ++i){
+            long score = evictionPolicy.getEvictionScore(nodeKeys[node]);
+            if(score > bestScore){
+                bestScore = score;
+                victim = node;
+            }
+            node = nodePrev[node];
+        }
+        return victim;
+    }
+
+    /**
+     * 把缓冲区里的访问记录更新到链表，需要在锁里调用
+     */
+    private void drainAccessBuffer(){
+        int end = accessWriteIndex.get();
+        int start = accessReadIndex;
+        if(end - start > ACCESS_BUFFER_SIZE){
+            start = end - ACCESS_BUFFER_SIZE;
+        }
+        for(int i = start; i != end; ++i){
+            int node = findNode(accessBuffer.get(i & (ACCESS_BUFFER_SIZE - 1)));
+            if(node != NONE){
+                moveToHead(node);
             }
+        }
+        accessReadIndex = end;
+    }
+
+    private void entryRemoved(int key, T value){
+        if(onEntryRemovedListener != null && value != null){
+            onEntryRemovedListener.onEntryRemoved(key, value);
+        }
+    }
 
-            System.out.println("value count: " + keyToValue.size() + ", total size: " + size);
+    @SuppressWarnings("unchecked")
+    private T valueOf(int node){
+        return (T) nodeValues[node];
+    }
+
+    // ------------------------------- 链表 ---------------------------------
+
+    private void linkHead(int node){
+        nodePrev[node] = NONE;
+        nodeNext[node] = head;
+        if(head != NONE){
+            nodePrev[head] = node;
+        }
+        head = node;
+        if(tail == NONE){
+            tail = node;
+        }
+    }
+
+    private void unlink(int node){
+        int prev = nodePrev[node], next = nodeNext[node];
+        if(prev != NONE){
+            nodeNext[prev] = next;
+        } else {
+            head = next;
+        }
+        if(next != NONE){
+            nodePrev[next] = prev;
+        } else {
+            tail = prev;
+        }
+    }
 
-            InnerSparseStruct<T> lastValue = timeToCountValue.valueAt(0);
-            size -= sizeOf(lastValue.key, lastValue.value);
-            keyToValue.remove(lastValue.key);
-            timeToCountValue.remove(lastValue.lastAccessTime);
-            System.out.println("release id: " + (lastValue.key & 0x07ffffff) + ", release value size: " + sizeOf(lastValue.key, lastValue.value));
+    private void moveToHead(int node){
+        if(head == node){
+            return;
+        }
+        unlink(node);
+        linkHead(node);
+    }
+
+    /**
+     * 从哈希表和链表中移除节点，并放回空闲链表
+     * @param node
+     */
+    private void removeNode(int node){
+        readTable.remove(nodeKeys[node]);
+        removeFromTable(nodeKeys[node]);
+        unlink(node);
+        size -= nodeSizes[node];
+        --count;
+        nodeValues[node] = null;
+        nodeNext[node] = freeHead;
+        freeHead = node;
+    }
+
+    private int obtainNode(){
+        if(freeHead == NONE){
+            growNodes(nodeKeys.length * 2);
+        }
+        int node = freeHead;
+        freeHead = nodeNext[node];
+        return node;
+    }
+
+    /**
+     * 节点扩容，同时重建哈希表
+     * @param capacity
+     */
+    private void growNodes(int capacity){
+        int oldCapacity = nodeKeys.length;
+        nodeKeys = Arrays.copyOf(nodeKeys, capacity);
+        nodeSizes = Arrays.copyOf(nodeSizes, capacity);
+        nodePrev = Arrays.copyOf(nodePrev, capacity);
+        nodeNext = Arrays.copyOf(nodeNext, capacity);
+        nodeValues = Arrays.copyOf(nodeValues, capacity);
+        for(int i = capacity - 1; i >= oldCapacity; --i){
+            nodeNext[i] = freeHead;
+            freeHead = i;
+        }
+
+        table = new int[capacity * 2];
+        Arrays.fill(table, NONE);
+        for(int node = head; node != NONE; node = nodeNext[node]){
+            insertIntoTable(node);
+        }
+    }
+
+    // ------------------------------- 哈希表 ---------------------------------
+
+    private static int hash(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findNode(int key){
+        int mask = table.length - 1;
+        for(int slot = hash(key) & mask; table[slot] != NONE; slot = (slot + 1) & mask){
+            if(nodeKeys[table[slot]] == key){
+                return table[slot];
+            }
+        }
+        return NONE;
+    }
+
+    private void insertIntoTable(int node){
+        int mask = table.length - 1;
+        int slot = hash(nodeKeys[node]) & mask;
+        while (table[slot] != NONE){
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = node;
+    }
+
+    /**
+     * 线性探测的删除，把后面的元素往前移动填补空位，不需要墓碑标记
+     * @param key 必须存在于哈希表中
+     */
+    private void removeFromTable(int key){
+        int mask = table.length - 1;
+        int hole = hash(key) & mask;
+        while (nodeKeys[table[hole]] != key){
+            hole = (hole + 1) & mask;
+        }
+
+        for(int slot = (hole + 1) & mask; table[slot] != NONE; slot = (slot + 1) & mask){
+            int ideal = hash(nodeKeys[table[slot]]) & mask;
+            // hole 在 [ideal, slot) 的探测路径上，可以移动过去
+            if(((slot - ideal) & mask) >= ((slot - hole) & mask)){
+                table[hole] = table[slot];
+                hole = slot;
+            }
         }
+        table[hole] = NONE;
     }
 }
@@ -0,0 +1,325 @@
+package org.voiddog.zoomabledrawee;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 超大图片的金字塔生成器
+ * 缩小的时候分块对应的原图区域很大，即使用 inSampleSize 区域解码也很慢。
+ * 这里在后台按行带扫描原图，每次只在 baseScaleExp 层级解码一行分块，
+ * 之后逐层缩小一半累积到上一层，每一层凑满一行分块就切开写入 {@link TileDiskCache}，
+ * 内存中只保留每一层的一行，和原图大小无关。
+ * 一行带的区域解码要很久，所以不使用会话里借给分块解码的解码器，也不占用调度器的解码线程，
+ * 而是在单独的最低优先级线程上用自己的解码器，每一行带作为一个任务，多个页面的生成器轮流执行；
+ * 写入磁盘缓存也在缓存自己的后台线程进行
+ *
+ * @author agent
+ * @since 2026-10-18 06:45
+ */
+
+
+public class PyramidBuilder implements Runnable {
+
+    /**
+     * 像素个数超过这个值的图片才需要生成金字塔
+     */
+    public static final long MIN_PIXEL_COUNT = 24L * 1024 * 1024;
+
+    /**
+     * 所有生成器共用的线程
+     */
+    private static final ExecutorService sBuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    r.run();
+                }
+            }, "PyramidBuilder");
+        }
+    });
+
+    private final EncodeBitmapHelper helper;
+
+    private final TileDiskCache diskCache;
+
+    private final long uriHash;
+
+    private final int contentStamp;
+
+    private final int segSize;
+
+    private final int baseScaleExp, topScaleExp;
+
+    private final int width, height;
+
+    private final Bitmap.Config config;
+
+    private CountDownRef<RegionDecodeSession> sessionRef;
+
+    /**
+     * 自己的解码器，第一次执行的时候创建，只在生成线程使用
+     */
+    private BitmapRegionDecoder decoder;
+
+    /**
+     * 每一层正在累积的一行，和已经完成的行数
+     */
+    private Bitmap[] rowBitmaps;
+    private int[] rowIndexes;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect tmpSrc = new Rect();
+    private final Rect tmpDst = new Rect();
+    private final RectF tmpDstF = new RectF();
+
+    private boolean isRunning = false;
+    private volatile boolean isCancelled = false;
+
+    /**
+     * @param helper 用于计算分块的 key
+     * @param sessionRef 解码会话，生成期间一直持有
+     * @param diskCache 写入的缓存
+     * @param uriHash {@link TileDiskCache#hashUri(android.net.Uri, int, int, Bitmap.Config)}
+     * @param contentStamp {@link TileDiskCache#contentStamp(android.net.Uri, long)}
+     * @param baseScaleExp 从这一层开始解码，更精细的层级仍然使用区域解码
+     * @param config 分块的位图格式
+     */
+    public PyramidBuilder(EncodeBitmapHelper helper, CountDownRef<RegionDecodeSession> sessionRef,
+                          TileDiskCache diskCache, long uriHash, int contentStamp, int baseScaleExp,
+                          Bitmap.Config config){
+        this.helper = helper;
+        this.diskCache = diskCache;
+        this.uriHash = uriHash;
+        this.contentStamp = contentStamp;
+        this.segSize = helper.getBitmapSegSize(0);
+        this.sessionRef = sessionRef;
+        RegionDecodeSession session = sessionRef.get();
+        this.width = session.getWidth();
+        this.height = session.getHeight();
+        this.baseScaleExp = baseScaleExp;
+        this.config = config;
+        // 最顶层一个分块就可以覆盖整张图片
+        int top = baseScaleExp;
+        while ((long) segSize << top < Math.max(width, height)){
+            ++top;
+        }
+        this.topScaleExp = top;
+        sessionRef.retian();
+    }
+
+    /**
+     * @return 图片是否大到需要生成金字塔
+     */
+    public static boolean shouldBuild(int width, int height){
+        return (long) width * height >= MIN_PIXEL_COUNT;
+    }
+
+    /**
+     * @return 之前是否已经生成过，最顶层的分块最后写入
+     */
+    public boolean isBuilt(){
+        return diskCache.contains(uriHash, contentStamp, helper.getKey(topScaleExp, 0));
+    }
+
+    public void start(){
+        sBuildExecutor.execute(this);
+    }
+
+    /**
+     * 取消生成，正在处理的行带结束之后释放会话
+     */
+    public void cancel(){
+        synchronized (this){
+            isCancelled = true;
+            if(isRunning){
+                return;
+            }
+        }
+        finish();
+    }
+
+    @Override
+    public void run() {
+        synchronized (this){
+            if(isCancelled || sessionRef == null){
+                return;
+            }
+            isRunning = true;
+        }
+
+        boolean hasMore = false;
+        try {
+            if(decoder == null){
+                decoder = sessionRef.get().newStandaloneDecoder();
+            }
+            if(rowBitmaps == null){
+                rowBitmaps = new Bitmap[topScaleExp + 1];
+                rowIndexes = new int[topScaleExp + 1];
+            }
+            hasMore = decoder != null && decodeNextBand();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this){
+            isRunning = false;
+            if(hasMore && !isCancelled){
+                sBuildExecutor.execute(this);
+                return;
+            }
+        }
+        finish();
+    }
+
+    /**
+     * 在 baseScaleExp 层级解码下一行分块
+     * @return 是否还有没有解码的行
+     */
+    private boolean decodeNextBand(){
+        int row = rowIndexes[baseScaleExp];
+        int bandSize = segSize << baseScaleExp;
+        int top = row * bandSize;
+        int bottom = Math.min(top + bandSize, height);
+
+        BitmapFactory.Options op = new BitmapFactory.Options();
+        op.inSampleSize = 1 << baseScaleExp;
+        op.inPreferredConfig = config;
+        Bitmap band = decoder.decodeRegion(new Rect(0, top, width, bottom), op);
+        if(band == null){
+            return false;
+        }
+
+        Bitmap rowBitmap = obtainRowBitmap(baseScaleExp);
+        rowBitmap.eraseColor(0);
+        tmpDst.set(0, 0, getLevelWidth(baseScaleExp), getRowHeight(baseScaleExp, row));
+        new Canvas(rowBitmap).drawBitmap(band, null, tmpDst, paint);
+        band.recycle();
+
+        completeRow(baseScaleExp);
+        return rowIndexes[baseScaleExp] < getRowCount(baseScaleExp);
+    }
+
+    /**
+     * 某一层的一行已经完整，切开写入缓存，再缩小一半累积到上一层
+     * @param scaleExp
+     */
+    private void completeRow(int scaleExp){
+        int row = rowIndexes[scaleExp];
+        Bitmap rowBitmap = rowBitmaps[scaleExp];
+        int rowHeight = getRowHeight(scaleExp, row);
+        writeTiles(scaleExp, row, rowBitmap, rowHeight);
+        rowIndexes[scaleExp] = row + 1;
+
+        if(scaleExp >= topScaleExp){
+            return;
+        }
+
+        int parent = scaleExp + 1;
+        Bitmap parentBitmap = obtainRowBitmap(parent);
+        if(row % 2 == 0){
+            parentBitmap.eraseColor(0);
+        }
+        float offsetY = (row % 2) * segSize * 0.5f;
+        tmpSrc.set(0, 0, getLevelWidth(scaleExp), rowHeight);
+        tmpDstF.set(0, offsetY, getLevelWidth(scaleExp) * 0.5f, offsetY + rowHeight * 0.5f);
+        new Canvas(parentBitmap).drawBitmap(rowBitmap, tmpSrc, tmpDstF, paint);
+
+        if(row % 2 == 1 || row + 1 >= getRowCount(scaleExp)){
+            completeRow(parent);
+        }
+    }
+
+    private void writeTiles(int scaleExp, int row, Bitmap rowBitmap, int rowHeight){
+        int column = getColumnCount(scaleExp);
+        int levelWidth = getLevelWidth(scaleExp);
+        for(int i = 0; i < column; ++i){
+            if(isCancelled){
+                return;
+            }
+            int left = i * segSize;
+            int tileWidth = Math.max(1, Math.min(segSize, levelWidth - left));
+            Bitmap tile = TileBitmapPool.getInstance().get(tileWidth, rowHeight, config);
+            if(tile == null){
+                tile = Bitmap.createBitmap(tileWidth, rowHeight, config);
+            } else {
+                tile.eraseColor(0);
+            }
+            tmpSrc.set(left, 0, left + tileWidth, rowHeight);
+            tmpDst.set(0, 0, tileWidth, rowHeight);
+            new Canvas(tile).drawBitmap(rowBitmap, tmpSrc, tmpDst, null);
+            diskCache.write(uriHash, contentStamp, helper.getKey(scaleExp, row * column + i), tile);
+            TileBitmapPool.getInstance().put(tile);
+        }
+    }
+
+    private Bitmap obtainRowBitmap(int scaleExp){
+        if(rowBitmaps[scaleExp] == null){
+            rowBitmaps[scaleExp] = Bitmap.createBitmap(getLevelWidth(scaleExp), segSize, config);
+        }
+        return rowBitmaps[scaleExp];
+    }
+
+    /**
+     * 释放会话、解码器和每一层的行
+     */
+    private void finish(){
+        CountDownRef<RegionDecodeSession> ref;
+        synchronized (this){
+            ref = sessionRef;
+            sessionRef = null;
+        }
+        if(ref == null){
+            return;
+        }
+        ref.release();
+        if(decoder != null){
+            decoder.recycle();
+            decoder = null;
+        }
+        if(rowBitmaps != null){
+            for(Bitmap bitmap : rowBitmaps){
+                if(bitmap != null){
+                    bitmap.recycle();
+                }
+            }
+            rowBitmaps = null;
+        }
+    }
+
+    // 和 DecodeRunnable 的区域解码保持一样的分块大小
+
+    private int getLevelWidth(int scaleExp){
+        return Math.max(1, width >> scaleExp);
+    }
+
+    private int getRowHeight(int scaleExp, int row){
+        int size = segSize << scaleExp;
+        int top = row * size;
+        return Math.max(1, (Math.min(top + size, height) - top) >> scaleExp);
+    }
+
+    private int getColumnCount(int scaleExp){
+        int size = segSize << scaleExp;
+        return width / size + (width % size == 0 ? 0 : 1);
+    }
+
+    private int getRowCount(int scaleExp){
+        int size = segSize << scaleExp;
+        return height / size + (height % size == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,533 @@
+package org.voiddog.zoomabledrawee;
+
+import android.graphics.BitmapRegionDecoder;
+
+import com.facebook.common.references.CloseableReference;
+import com.facebook.imagepipeline.memory.PooledByteBuffer;
+import com.facebook.imagepipeline.memory.PooledByteBufferInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区域解码会话
+ * 一张图片只解析一次头部信息，所有分块共用这个会话
+ * BitmapRegionDecoder 内部的 decodeRegion 是串行的，所以会话里维护了多个独立的解码器，
+ * 每次解码借出一个空闲的解码器，最多同时存在 maxDecoderCount 个，借不到的时候不等待，
+ * 调用者（解码线程）先用 {@link #hasFreeDecoder()} 判断，不会阻塞在某一张图片上，
+ * 每个解码器在 native 层都有和图片数据大小相当的开销，所以图片越大允许的解码器越少
+ * 图片数据可以来自内存中未解码的图片，也可以直接来自本地文件，
+ * 内存中的图片会先写入临时文件，解码器都从文件描述符按需读取，不会把整张图片放在内存里
+ *
+ * @author agent
+ * @since 2026-10-18 06:29
+ */
+
+
+public class RegionDecodeSession {
+
+    /**
+     * 所有解码器的 native 开销加起来最多占堆大小的多少分之一
+     */
+    private static final int DECODER_BUDGET_DIVIDER = 8;
+
+    /**
+     * 内存中的图片写入临时文件时每次复制的大小
+     */
+    private static final int SPILL_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * 解码器的数据来源
+     */
+    private interface DecoderSource {
+        /**
+         * @return 未解码的图片数据大小
+         */
+        long length();
+
+        /**
+         * 创建新的解码器，可能会在多个线程同时调用
+         * @return
+         * @throws IOException 图片格式不支持区域解码或者数据已经不可用
+         */
+        BitmapRegionDecoder newDecoder() throws IOException;
+
+        /**
+         * @return 数据的前几个字节
+         */
+        byte[] readHeader(int length);
+
+        void close();
+    }
+
+    private DecoderSource source;
+
+    /**
+     * 空闲的解码器
+     */
+    private ArrayDeque<BitmapRegionDecoder> freeDecoders = new ArrayDeque<>();
+
+    /**
+     * 已经创建的所有解码器
+     */
+    private List<BitmapRegionDecoder> allDecoders = new ArrayList<>();
+
+    /**
+     * 解码器的最大个数
+     */
+    private int maxDecoderCount;
+
+    /**
+     * 正在创建中的解码器个数
+     */
+    private int creatingCount = 0;
+
+    /**
+     * 原图大小
+     */
+    private int width, height;
+
+    /**
+     * 是否是 JPEG，JPEG 不透明
+     */
+    private boolean isJpeg;
+
+    /**
+     * 创建时未解码的图片数据大小
+     */
+    private long encodeLength;
+
+    private boolean isClosed = false;
+
+    private RegionDecodeSession(DecoderSource source, BitmapRegionDecoder regionDecoder, long encodeLength, int maxDecoderCount){
+        this.source = source;
+        this.encodeLength = encodeLength;
+        this.maxDecoderCount = Math.max(1, maxDecoderCount);
+        this.width = regionDecoder.getWidth();
+        this.height = regionDecoder.getHeight();
+        byte[] header = source.readHeader(3);
+        this.isJpeg = header != null && header.length == 3 && (header[0] & 0xff) == 0xff
+                && (header[1] & 0xff) == 0xd8 && (header[2] & 0xff) == 0xff;
+        allDecoders.add(regionDecoder);
+        freeDecoders.push(regionDecoder);
+    }
+
+    /**
+     * 创建解码会话，会话接管 encodeRef
+     * 图片先写入临时目录（Android 上是应用的 cache 目录）下的文件，写完马上关闭 encodeRef，
+     * 文件在会话关闭的时候删除；写不了文件的时候才持有 encodeRef 直到会话关闭，这时只允许一个解码器
+     * @param encodeRef 未解码的图片
+     * @param maxDecoderCount 最多可以并行解码的个数
+     * @return
+     * @throws IOException 图片格式不支持区域解码
+     */
+    public static RegionDecodeSession create(CloseableReference<PooledByteBuffer> encodeRef, int maxDecoderCount) throws IOException {
+        File file;
+        try {
+            file = spillToTempFile(encodeRef.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return create(new BufferSource(encodeRef), 1);
+        }
+        CloseableReference.closeSafely(encodeRef);
+        CountDownRef<File> fileRef = newTempFileRef(file);
+        try {
+            return create(fileRef, maxDecoderCount);
+        } finally {
+            fileRef.release();
+        }
+    }
+
+    /**
+     * 从本地文件创建解码会话，每个解码器各自打开一次文件，
+     * 文件在会话期间被删除的话已经打开的解码器仍然可以使用，只是不能再创建新的
+     * @param file 未解码的图片文件
+     * @param maxDecoderCount 最多可以并行解码的个数
+     * @return
+     * @throws IOException 文件不存在或者图片格式不支持区域解码
+     */
+    public static RegionDecodeSession create(File file, int maxDecoderCount) throws IOException {
+        return create(new FileSource(file, null), maxDecoderCount);
+    }
+
+    /**
+     * 从多个会话共用的临时文件创建解码会话，会话持有一次 fileRef，关闭的时候释放，
+     * 文件可以在会话创建之后继续追加数据
+     * @param fileRef {@link #newTempFileRef(File)} 创建的文件引用，调用者仍然持有自己的那一次
+     * @param maxDecoderCount 最多可以并行解码的个数
+     * @return
+     * @throws IOException 图片格式不支持区域解码
+     */
+    public static RegionDecodeSession create(CountDownRef<File> fileRef, int maxDecoderCount) throws IOException {
+        fileRef.retian();
+        return create(new FileSource(fileRef.get(), fileRef), maxDecoderCount);
+    }
+
+    /**
+     * 临时文件的引用，计数归零的时候删除文件
+     * @param file
+     * @return 引用计数为1
+     */
+    public static CountDownRef<File> newTempFileRef(File file){
+        return new CountDownRef<File>(file){
+            @Override
+            protected void releaseData(File value) {
+                // 还没有归还的解码器持有自己的文件描述符，删除之后仍然可以读
+                value.delete();
+            }
+        };
+    }
+
+    /**
+     * 创建临时文件，Android 上在应用的 cache 目录下
+     * @return
+     * @throws IOException
+     */
+    public static File createTempFile() throws IOException {
+        return File.createTempFile("region_decode_", ".tmp");
+    }
+
+    /**
+     * 把内存中的图片从 start 开始分段写入 os，不会再复制出一份完整的数组
+     * @param buffer
+     * @param start 开始的位置
+     * @param os
+     * @throws IOException
+     */
+    static void writeBuffer(PooledByteBuffer buffer, int start, OutputStream os) throws IOException {
+        byte[] chunk = new byte[SPILL_BUFFER_SIZE];
+        int size = buffer.size();
+        for(int offset = start; offset < size; ){
+            int count = Math.min(chunk.length, size - offset);
+            buffer.read(offset, chunk, 0, count);
+            os.write(chunk, 0, count);
+            offset += count;
+        }
+    }
+
+    private static RegionDecodeSession create(DecoderSource source, int maxDecoderCount) throws IOException {
+        BitmapRegionDecoder regionDecoder;
+        try {
+            regionDecoder = source.newDecoder();
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+        long encodeLength = source.length();
+        return new RegionDecodeSession(source, regionDecoder, encodeLength, limitDecoderCount(maxDecoderCount, encodeLength));
+    }
+
+    /**
+     * 按照图片数据大小限制解码器个数，堆大小对应设备的内存等级
+     * @param maxDecoderCount 期望的个数
+     * @param encodeLength 未解码的图片数据大小
+     * @return 至少为 1
+     */
+    static int limitDecoderCount(int maxDecoderCount, long encodeLength){
+        long budget = Runtime.getRuntime().maxMemory() / DECODER_BUDGET_DIVIDER;
+        long affordable = budget / Math.max(1, encodeLength);
+        return (int) Math.max(1, Math.min(maxDecoderCount, affordable));
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return 创建时未解码的图片数据大小，下载中的会话只是已经到达的部分
+     */
+    public long getEncodeLength(){
+        return encodeLength;
+    }
+
+    /**
+     * @return 是否是 JPEG，根据文件头 FF D8 FF 判断
+     */
+    public boolean isJpeg(){
+        return isJpeg;
+    }
+
+    /**
+     * @return 现在是否可以借出解码器，会话已经关闭的时候也返回 true，让等待的任务尽快结束
+     */
+    public synchronized boolean hasFreeDecoder(){
+        return isClosed || !freeDecoders.isEmpty() || allDecoders.size() + creatingCount < maxDecoderCount;
+    }
+
+    public synchronized boolean isClosed(){
+        return isClosed;
+    }
+
+    /**
+     * 创建一个不属于会话的解码器，不占用分块解码可以借出的解码器，调用者负责 recycle，
+     * 用于长时间占用解码器的后台任务；需要在会话关闭之前调用，之后数据可能已经不可用
+     * @return 会话已经关闭、图片只在内存中或者创建失败的时候返回 null
+     */
+    public BitmapRegionDecoder newStandaloneDecoder(){
+        synchronized (this){
+            // 内存中的图片每个解码器都要复制一份，不再额外创建
+            if(isClosed || !(source instanceof FileSource)){
+                return null;
+            }
+        }
+        try {
+            return source.newDecoder();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 关闭会话，释放解码器和未解码的图片
+     */
+    public void close(){
+        synchronized (this){
+            if(isClosed){
+                return;
+            }
+            isClosed = true;
+            // 借出去的解码器在归还的时候释放
+            while (!freeDecoders.isEmpty()){
+                BitmapRegionDecoder decoder = freeDecoders.pop();
+                allDecoders.remove(decoder);
+                decoder.recycle();
+            }
+        }
+        source.close();
+    }
+
+    /**
+     * 借出一个空闲的解码器，不够的时候在上限内创建新的，用完之后调用 {@link #recycleDecoder(BitmapRegionDecoder)} 归还
+     * @return 会话已经关闭或者解码器都已经借出的时候返回 null，不等待
+     */
+    public BitmapRegionDecoder obtainDecoder(){
+        synchronized (this){
+            if(isClosed){
+                return null;
+            }
+            if(!freeDecoders.isEmpty()){
+                return freeDecoders.pop();
+            }
+            if(allDecoders.size() + creatingCount >= maxDecoderCount){
+                return null;
+            }
+            ++creatingCount;
+        }
+
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = source.newDecoder();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this){
+            --creatingCount;
+            if(decoder == null){
+                // 创建失败，之后只用已经有的解码器
+                maxDecoderCount = Math.max(1, allDecoders.size());
+            } else if(isClosed){
+                decoder.recycle();
+                return null;
+            } else {
+                allDecoders.add(decoder);
+                return decoder;
+            }
+        }
+        return obtainDecoder();
+    }
+
+    /**
+     * 归还解码器
+     * @param decoder {@link #obtainDecoder()} 借出的解码器
+     */
+    public synchronized void recycleDecoder(BitmapRegionDecoder decoder){
+        if(isClosed){
+            allDecoders.remove(decoder);
+            decoder.recycle();
+            return;
+        }
+        freeDecoders.push(decoder);
+    }
+
+    /**
+     * 把内存中的图片写入临时文件
+     * @param buffer
+     * @return 写好的文件
+     * @throws IOException 写入失败，已经写了一部分的文件会被删除
+     */
+    private static File spillToTempFile(PooledByteBuffer buffer) throws IOException {
+        File file = createTempFile();
+        FileOutputStream fos = null;
+        boolean isSuccess = false;
+        try {
+            fos = new FileOutputStream(file);
+            writeBuffer(buffer, 0, fos);
+            fos.close();
+            fos = null;
+            isSuccess = true;
+            return file;
+        } finally {
+            if(fos != null){
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if(!isSuccess){
+                file.delete();
+            }
+        }
+    }
+
+    private static BitmapRegionDecoder checkDecoder(BitmapRegionDecoder regionDecoder) throws IOException {
+        if(regionDecoder == null){
+            throw new IOException("can not create region decoder");
+        }
+        return regionDecoder;
+    }
+
+    /**
+     * 内存中未解码的图片，只在写不了临时文件的时候使用
+     * 每个解码器都会通过 InputStream 把整张图片再读一遍，所以会话只允许一个解码器
+     */
+    private static class BufferSource implements DecoderSource {
+
+        private CloseableReference<PooledByteBuffer> encodeRef;
+
+        private BufferSource(CloseableReference<PooledByteBuffer> encodeRef){
+            this.encodeRef = encodeRef;
+        }
+
+        @Override
+        public synchronized long length() {
+            return encodeRef == null ? 0 : encodeRef.get().size();
+        }
+
+        @Override
+        public BitmapRegionDecoder newDecoder() throws IOException {
+            CloseableReference<PooledByteBuffer> sourceRef;
+            synchronized (this){
+                if(encodeRef == null){
+                    throw new IOException("source has been closed");
+                }
+                sourceRef = encodeRef.clone();
+            }
+
+            try {
+                InputStream is = new PooledByteBufferInputStream(sourceRef.get());
+                return checkDecoder(BitmapRegionDecoder.newInstance(is, true));
+            } finally {
+                CloseableReference.closeSafely(sourceRef);
+            }
+        }
+
+        @Override
+        public synchronized byte[] readHeader(int length) {
+            if(encodeRef == null || encodeRef.get().size() < length){
+                return null;
+            }
+            byte[] header = new byte[length];
+            encodeRef.get().read(0, header, 0, length);
+            return header;
+        }
+
+        @Override
+        public synchronized void close() {
+            CloseableReference.closeSafely(encodeRef);
+            encodeRef = null;
+        }
+    }
+
+    /**
+     * 本地的图片文件
+     */
+    private static class FileSource implements DecoderSource {
+
+        private File file;
+
+        /**
+         * 临时文件的引用，关闭的时候释放，不是临时文件的时候为 null
+         */
+        private CountDownRef<File> fileRef;
+
+        private FileSource(File file, CountDownRef<File> fileRef){
+            this.file = file;
+            this.fileRef = fileRef;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public BitmapRegionDecoder newDecoder() throws IOException {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                // isShareable 为 true 的时候解码器会 dup 一份文件描述符，按需从文件读取，
+                // 为 false 的时候部分系统版本会把整个文件复制到内存里
+                return checkDecoder(BitmapRegionDecoder.newInstance(fis.getFD(), true));
+            } finally {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public byte[] readHeader(int length) {
+            byte[] header = new byte[length];
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(file);
+                int offset = 0;
+                while (offset < length){
+                    int count = fis.read(header, offset, length - offset);
+                    if(count < 0){
+                        return null;
+                    }
+                    offset += count;
+                }
+                return header;
+            } catch (IOException e) {
+                return null;
+            } finally {
+                if(fis != null){
+                    try {
+                        fis.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if(fileRef != null){
+                fileRef.release();
+                fileRef = null;
+            }
+        }
+    }
+}
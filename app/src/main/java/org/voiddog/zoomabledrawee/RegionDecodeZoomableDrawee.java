@@ -3,9 +3,14 @@ package org.voiddog.zoomabledrawee;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewTreeObserver;
 
 import com.facebook.drawee.backends.pipeline.Fresco;
 import com.facebook.drawee.interfaces.DraweeController;
@@ -29,6 +34,29 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
      */
     private Uri lazyLoadUri;
 
+    /**
+     * 可见分块外围预加载的圈数
+     */
+    private int prefetchMargin = 1;
+
+    /**
+     * 是否使用已解码分块的磁盘缓存
+     */
+    private volatile boolean isTileDiskCacheEnabled = false;
+
+    /**
+     * 判断是否显示在屏幕上，比如 ViewPager 滑动之后
+     */
+    private final Rect tmpVisibleRect = new Rect();
+
+    private final ViewTreeObserver.OnPreDrawListener shownChecker = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            updateShown();
+            return true;
+        }
+    };
+
     private EncodeBitmapHelper encodeBitmapHelper = new EncodeBitmapHelper(dp2px(150), getMemoryCacheSize(getContext())) {
         @Override
         protected void onBitmapUpdate() {
@@ -55,14 +83,43 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
         encodeBitmapHelper.attachToWindow();
+        getViewTreeObserver().addOnPreDrawListener(shownChecker);
+        updateShown();
     }
 
     @Override
     protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnPreDrawListener(shownChecker);
         super.onDetachedFromWindow();
         encodeBitmapHelper.detachFromWindow();
     }
 
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateShown();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateShown();
+    }
+
+    /**
+     * 窗口可见、自己和所有父视图可见、并且有一部分在屏幕上的时候才算显示，
+     * 和最近有没有绘制无关，静止的页面仍然是显示的
+     */
+    private void updateShown(){
+        if(encodeBitmapHelper == null){
+            // 父类的构造函数里可能就会回调可见性变化
+            return;
+        }
+        boolean isShown = getWindowVisibility() == VISIBLE && isShown()
+                && getGlobalVisibleRect(tmpVisibleRect);
+        encodeBitmapHelper.setShown(isShown);
+    }
+
     @Override
     public void setImageURI(Uri uri) {
         if(uri == null || isGif(uri)){
@@ -102,14 +159,42 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
      * @param defStyle
      */
     protected void init(Context context, AttributeSet attrs, int defStyle){
+        encodeBitmapHelper.setTileMemoryManager(TileMemoryManager.getInstance(context));
+        encodeBitmapHelper.setRetainedTileCache(RetainedTileCache.getInstance());
     }
 
     protected int dp2px(double dp){
         return (int) (getContext().getResources().getDisplayMetrics().density * dp);
     }
 
+    /**
+     * 往上查找低分辨率分块的最多层数
+     */
+    private static final int MAX_FALLBACK_LEVEL = 4;
+
     RectF tmpRect = new RectF();
 
+    /**
+     * 图片没有缩放时在视图上的位置
+     */
+    RectF tmpOriginRect = new RectF();
+
+    /**
+     * 分块的列和行的范围
+     */
+    Rect tmpGrid = new Rect();
+
+    /**
+     * 滑动预测的偏移和位置
+     */
+    PointF tmpOffset = new PointF();
+    RectF tmpPredictRect = new RectF();
+
+    /**
+     * 绘制放大的低分辨率分块，需要双线性过滤
+     */
+    private Paint fallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -117,6 +202,8 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
             return;
         }
 
+        // 新的一帧，上一帧请求了这一帧没有请求的分块会被取消
+        encodeBitmapHelper.beginFrame();
         if(!needDisplayDecodeBitmap()){
             return;
         }
@@ -125,17 +212,35 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
 
         int originWidth = encodeBitmapHelper.getOriginWidth();
         float scale = originWidth * 1.0f / (tmpRect.right - tmpRect.left);
-        int scaleExp = (int) Math.ceil(Math.log(scale < 1 ? 1 : scale)/Math.log(2));
-        int originRegionBitmapSize = encodeBitmapHelper.getBitmapSegSize(scaleExp);
-
-        int column = originWidth / originRegionBitmapSize;
-        column += originWidth % originRegionBitmapSize == 0 ? 0 : 1;
-        int startX = (int)(Math.max(0, -tmpRect.left) * scale) / originRegionBitmapSize;
-        int startY = (int)(Math.max(0, -tmpRect.top) * scale) / originRegionBitmapSize;
-        int endX = (int)(Math.min(tmpRect.right - tmpRect.left, getWidth() - tmpRect.left) * scale) / originRegionBitmapSize;
-        int endY = (int)(Math.min(tmpRect.bottom - tmpRect.top, getHeight() - tmpRect.top) * scale) / originRegionBitmapSize;
+        int scaleExp = computeRegionGrid(tmpRect, tmpGrid);
+        int column = getRegionColumnCount(scaleExp);
+        int startX = tmpGrid.left, startY = tmpGrid.top;
+        int endX = tmpGrid.right, endY = tmpGrid.bottom;
         int x = startX, y = startY;
 
+        // 视口中心在原图上的位置，用于解码优先级
+        float centerX = (getWidth() / 2.0f - tmpRect.left) * scale;
+        float centerY = (getHeight() / 2.0f - tmpRect.top) * scale;
+        encodeBitmapHelper.updateViewport(scaleExp, centerX, centerY);
+
+        // 预加载的分块先请求，可见的分块在这一帧最后访问，处于 LRU 最新的一端；
+        // 滑动预测和外围预加载一起分缓存除去可见分块之后的容量，不会挤掉可见的分块
+        int maxTileCount = encodeBitmapHelper.getMaxCachedTileCount();
+        int visibleTileCount = (endX - startX + 1) * (endY - startY + 1);
+        int predictTileCount = 0;
+        if(zoomableGestureHelper.predictFlingOffset(tmpOffset)){
+            // 预测滑动停下来的位置，提前以低优先级解码那里的分块，放不下的时候不预测
+            tmpPredictRect.set(tmpRect);
+            tmpPredictRect.offset(tmpOffset.x, tmpOffset.y);
+            predictTileCount = countDecodeRegions(tmpPredictRect);
+            if(visibleTileCount + predictTileCount <= maxTileCount){
+                requestDecodeRegions(tmpPredictRect, EncodeBitmapHelper.PRIORITY_PREFETCH);
+            } else {
+                predictTileCount = 0;
+            }
+        }
+        requestPrefetchRing(scaleExp, startX, startY, endX, endY, maxTileCount - predictTileCount);
+
         int count = canvas.save();
         canvas.translate(tmpRect.left, tmpRect.top);
         float visibleScale = (1 << scaleExp) / scale;
@@ -146,6 +251,7 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
             Bitmap drawRegionBitmap = encodeBitmapHelper.getBitmap(key);
             if(drawRegionBitmap == null){
                 encodeBitmapHelper.addDecodeRegion(key);
+                drawFallbackRegion(canvas, scaleExp, x, y);
             } else {
                 int size = encodeBitmapHelper.getBitmapSegSize(0);
                 int left = size * x, top = size * y;
@@ -160,24 +266,250 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
         canvas.restoreToCount(count);
     }
 
+    /**
+     * 设置可见分块外围预加载的圈数，预加载的分块优先级低于可见的分块
+     * @param prefetchMargin 默认为1，0 表示不预加载
+     */
+    public void setPrefetchMargin(int prefetchMargin) {
+        this.prefetchMargin = Math.max(0, prefetchMargin);
+    }
+
+    /**
+     * 设置分块的位图格式策略，在下一次设置图片的时候生效
+     * @param configPolicy 参见 {@link EncodeBitmapHelper#setConfigPolicy(int)}
+     */
+    public void setTileConfigPolicy(int configPolicy) {
+        encodeBitmapHelper.setConfigPolicy(configPolicy);
+    }
+
+    /**
+     * 设置是否使用已解码分块的磁盘缓存，缓存在后台线程打开，打开之前解码的分块不经过磁盘缓存
+     * @param enabled 默认为 false
+     */
+    public void setTileDiskCacheEnabled(boolean enabled) {
+        isTileDiskCacheEnabled = enabled;
+        if(!enabled){
+            encodeBitmapHelper.setTileDiskCache(null);
+            return;
+        }
+        TileDiskCache.openInstance(getContext(), new TileDiskCache.OnOpenListener() {
+            @Override
+            public void onOpen(TileDiskCache tileDiskCache) {
+                if(isTileDiskCacheEnabled){
+                    encodeBitmapHelper.setTileDiskCache(tileDiskCache);
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置离开窗口之后保留数据的时间
+     * @param lingerTime 参见 {@link EncodeBitmapHelper#setLingerTime(long)}
+     */
+    public void setDetachLingerTime(long lingerTime) {
+        encodeBitmapHelper.setLingerTime(lingerTime);
+    }
+
+    /**
+     * 请求解码可见分块外围的分块
+     * 圈数会被限制在 maxTileCount 能够同时放下可见分块和预加载分块的范围内，保证预加载的分块不会挤掉可见的分块
+     * @param scaleExp 缩放指数
+     * @param startX 可见分块的范围
+     * @param startY
+     * @param endX
+     * @param endY
+     * @param maxTileCount 缓存中留给可见分块和外围分块的个数，已经去掉了同一帧滑动预测请求的分块
+     */
+    protected void requestPrefetchRing(int scaleExp, int startX, int startY, int endX, int endY, int maxTileCount){
+        int column = getRegionColumnCount(scaleExp);
+        int row = getRegionRowCount(scaleExp);
+        int margin = prefetchMargin;
+        int ringStartX, ringStartY, ringEndX, ringEndY;
+        for(;;){
+            ringStartX = Math.max(0, startX - margin);
+            ringStartY = Math.max(0, startY - margin);
+            ringEndX = Math.min(column - 1, endX + margin);
+            ringEndY = Math.min(row - 1, endY + margin);
+            if(margin == 0 || (ringEndX - ringStartX + 1) * (ringEndY - ringStartY + 1) <= maxTileCount){
+                break;
+            }
+            --margin;
+        }
+        if(margin == 0){
+            return;
+        }
+
+        for(int y = ringStartY; y <= ringEndY; ++y){
+            for(int x = ringStartX; x <= ringEndX; ++x){
+                if(x >= startX && x <= endX && y >= startY && y <= endY){
+                    // 可见的分块
+                    continue;
+                }
+                int key = encodeBitmapHelper.getKey(scaleExp, y * column + x);
+                if(encodeBitmapHelper.getBitmap(key) == null){
+                    encodeBitmapHelper.addDecodeRegion(key, EncodeBitmapHelper.PRIORITY_PREFETCH);
+                }
+            }
+        }
+    }
+
+    /**
+     * 双击缩放一开始就以高优先级解码缩放结束时需要的分块
+     * @param targetInnerBounds 预测的缩放结束时图片在视图上的位置
+     */
+    @Override
+    protected void onAutoScaleTarget(RectF targetInnerBounds) {
+        super.onAutoScaleTarget(targetInnerBounds);
+        if(encodeBitmapHelper.isLoadingData() || !needDisplayDecodeBitmap(targetInnerBounds)){
+            return;
+        }
+        requestDecodeRegions(targetInnerBounds, EncodeBitmapHelper.PRIORITY_HIGH);
+    }
+
+    /**
+     * 计算图片在视图上处于 innerBounds 位置时，视图范围内需要的分块
+     * @param innerBounds 图片在视图上的位置
+     * @param outGrid 输出分块的列和行的范围，包含 right 和 bottom
+     * @return 缩放指数
+     */
+    protected int computeRegionGrid(RectF innerBounds, Rect outGrid){
+        int originWidth = encodeBitmapHelper.getOriginWidth();
+        float scale = originWidth * 1.0f / (innerBounds.right - innerBounds.left);
+        int scaleExp = (int) Math.ceil(Math.log(scale < 1 ? 1 : scale)/Math.log(2));
+        int originRegionBitmapSize = encodeBitmapHelper.getBitmapSegSize(scaleExp);
+
+        outGrid.left = (int)(Math.max(0, -innerBounds.left) * scale) / originRegionBitmapSize;
+        outGrid.top = (int)(Math.max(0, -innerBounds.top) * scale) / originRegionBitmapSize;
+        outGrid.right = (int)(Math.min(innerBounds.right - innerBounds.left, getWidth() - innerBounds.left) * scale) / originRegionBitmapSize;
+        outGrid.bottom = (int)(Math.min(innerBounds.bottom - innerBounds.top, getHeight() - innerBounds.top) * scale) / originRegionBitmapSize;
+        outGrid.right = Math.min(outGrid.right, getRegionColumnCount(scaleExp) - 1);
+        outGrid.bottom = Math.min(outGrid.bottom, getRegionRowCount(scaleExp) - 1);
+        return scaleExp;
+    }
+
+    /**
+     * @param scaleExp 缩放指数
+     * @return 这一层的分块列数
+     */
+    protected int getRegionColumnCount(int scaleExp){
+        int originWidth = encodeBitmapHelper.getOriginWidth();
+        int originRegionBitmapSize = encodeBitmapHelper.getBitmapSegSize(scaleExp);
+        int column = originWidth / originRegionBitmapSize;
+        column += originWidth % originRegionBitmapSize == 0 ? 0 : 1;
+        return column;
+    }
+
+    /**
+     * @param scaleExp 缩放指数
+     * @return 这一层的分块行数
+     */
+    protected int getRegionRowCount(int scaleExp){
+        int originHeight = encodeBitmapHelper.getOriginHeight();
+        int originRegionBitmapSize = encodeBitmapHelper.getBitmapSegSize(scaleExp);
+        int row = originHeight / originRegionBitmapSize;
+        row += originHeight % originRegionBitmapSize == 0 ? 0 : 1;
+        return row;
+    }
+
+    /**
+     * @param innerBounds 图片在视图上的位置
+     * @return 图片处于 innerBounds 位置时视图范围内的分块个数
+     */
+    protected int countDecodeRegions(RectF innerBounds){
+        if(innerBounds.left >= getWidth() || innerBounds.right <= 0
+                || innerBounds.top >= getHeight() || innerBounds.bottom <= 0){
+            return 0;
+        }
+
+        computeRegionGrid(innerBounds, tmpGrid);
+        return (tmpGrid.right - tmpGrid.left + 1) * (tmpGrid.bottom - tmpGrid.top + 1);
+    }
+
+    /**
+     * 请求解码图片处于 innerBounds 位置时视图范围内还没有缓存的分块，不绘制
+     * @param innerBounds 图片在视图上的位置
+     * @param priority 解码优先级
+     */
+    protected void requestDecodeRegions(RectF innerBounds, int priority){
+        if(innerBounds.left >= getWidth() || innerBounds.right <= 0
+                || innerBounds.top >= getHeight() || innerBounds.bottom <= 0){
+            return;
+        }
+
+        int scaleExp = computeRegionGrid(innerBounds, tmpGrid);
+        int column = getRegionColumnCount(scaleExp);
+        for(int y = tmpGrid.top; y <= tmpGrid.bottom; ++y){
+            for(int x = tmpGrid.left; x <= tmpGrid.right; ++x){
+                int key = encodeBitmapHelper.getKey(scaleExp, y * column + x);
+                if(encodeBitmapHelper.getBitmap(key) == null){
+                    encodeBitmapHelper.addDecodeRegion(key, priority);
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前层级的分块还没有解码的时候，用已经缓存的更低分辨率的分块放大后填充
+     * @param canvas 已经缩放到 scaleExp 层级的画布
+     * @param scaleExp 当前层级
+     * @param x 当前层级的分块列
+     * @param y 当前层级的分块行
+     */
+    protected void drawFallbackRegion(Canvas canvas, int scaleExp, int x, int y){
+        int originWidth = encodeBitmapHelper.getOriginWidth();
+        int originMaxSize = Math.max(originWidth, encodeBitmapHelper.getOriginHeight());
+        int size = encodeBitmapHelper.getBitmapSegSize(0);
+        for(int level = 1; level <= MAX_FALLBACK_LEVEL && scaleExp + level < 32; ++level){
+            int parentScaleExp = scaleExp + level;
+            int parentRegionBitmapSize = encodeBitmapHelper.getBitmapSegSize(parentScaleExp);
+            int column = getRegionColumnCount(parentScaleExp);
+            int parentX = x >> level, parentY = y >> level;
+            Bitmap parentBitmap = encodeBitmapHelper.getBitmap(
+                    encodeBitmapHelper.getKey(parentScaleExp, parentY * column + parentX));
+            if(parentBitmap != null){
+                // 只画出当前分块覆盖的那一部分
+                int left = size * x, top = size * y;
+                int count = canvas.save();
+                canvas.clipRect(left, top, left + size, top + size);
+                canvas.translate(size * (parentX << level), size * (parentY << level));
+                canvas.scale(1 << level, 1 << level);
+                canvas.drawBitmap(parentBitmap, 0, 0, fallbackPaint);
+                canvas.restoreToCount(count);
+                return;
+            }
+            if(parentRegionBitmapSize >= originMaxSize){
+                // 一个分块已经覆盖整张图
+                return;
+            }
+        }
+    }
+
     protected boolean needDisplayDecodeBitmap(){
         getInnerVisibleBounds(tmpRect);
-        if (tmpRect.left >= tmpRect.right || tmpRect.top >= tmpRect.bottom){
+        return needDisplayDecodeBitmap(tmpRect);
+    }
+
+    /**
+     * @param visibleBounds 图片在视图上的位置
+     * @return 图片在这个位置的时候是否需要局部解码
+     */
+    protected boolean needDisplayDecodeBitmap(RectF visibleBounds){
+        if (visibleBounds.left >= visibleBounds.right || visibleBounds.top >= visibleBounds.bottom){
             // 视图大小错误
             return false;
         }
 
-        if(Math.max((tmpRect.right - tmpRect.left) / getWidth(), (tmpRect.bottom - tmpRect.top) / getHeight()) < 2){
+        if(Math.max((visibleBounds.right - visibleBounds.left) / getWidth(), (visibleBounds.bottom - visibleBounds.top) / getHeight()) < 2){
             // 可视缩放小于2
             return false;
         }
 
-        if(tmpRect.left >= getWidth() || tmpRect.right <= 0 || tmpRect.top >= getHeight() || tmpRect.bottom <= 0){
+        if(visibleBounds.left >= getWidth() || visibleBounds.right <= 0 || visibleBounds.top >= getHeight() || visibleBounds.bottom <= 0){
             return false;
         }
 
-        getInnerOriginBounds(tmpRect);
-        if(encodeBitmapHelper.getOriginWidth() / (tmpRect.right - tmpRect.left) < 2){
+        getInnerOriginBounds(tmpOriginRect);
+        if(encodeBitmapHelper.getOriginWidth() / (tmpOriginRect.right - tmpOriginRect.left) < 2){
             return false;
         }
 
@@ -201,7 +533,8 @@ public class RegionDecodeZoomableDrawee extends ZoomableDrawee{
      * @description
      *
      * @param context
-     * @return 得到需要分配的缓存大小，这里用八分之一的大小来做
+     * @return 得到需要分配的缓存大小，这里用八分之一的大小来做，
+     * 只是初始大小，之后由 {@link TileMemoryManager} 按照可见性和系统内存情况调整
      */
     public int getMemoryCacheSize(Context context) {
         int width = context.getResources().getDisplayMetrics().widthPixels;
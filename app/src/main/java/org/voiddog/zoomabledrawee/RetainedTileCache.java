@@ -0,0 +1,202 @@
+package org.voiddog.zoomabledrawee;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 跨图片保留的分块缓存
+ * EncodeBitmapHelper 切换图片或者离开窗口的时候，不再把分块直接放入复用池，而是按照 图片、内容标记、分块大小、Config
+ * 整组保留在这里，之后再加载同一张图片的时候整组取回，不需要重新解码。
+ * 超过保留时间或者超出大小的时候先移除最早放入的一组，移除的分块放入 {@link TileBitmapPool}
+ *
+ * @author agent
+ * @since 2026-10-18 06:51
+ */
+
+
+public class RetainedTileCache {
+
+    /**
+     * 默认保留时间，ms
+     */
+    private static final long DEFAULT_RETAIN_TIME = 60 * 1000;
+
+    private static RetainedTileCache sInstance;
+
+    public static synchronized RetainedTileCache getInstance(){
+        if(sInstance == null){
+            sInstance = new RetainedTileCache(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 一张图片保留下来的分块
+     */
+    private static class Entry {
+        private Uri uri;
+        private int contentStamp;
+        private int segSize;
+        private Bitmap.Config config;
+        private SparseArray<Bitmap> tiles;
+        private long byteCount;
+        private long retainTime;
+    }
+
+    /**
+     * 最大缓存大小，byte count
+     */
+    private long maxSize;
+
+    /**
+     * 当前缓存占用大小
+     */
+    private long size;
+
+    /**
+     * 放入之后保留多久，ms
+     */
+    private long retainTime = DEFAULT_RETAIN_TIME;
+
+    /**
+     * 按照放入的先后顺序排列
+     */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private boolean isExpirePosted = false;
+
+    private final Runnable expireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RetainedTileCache.this){
+                isExpirePosted = false;
+                trimToSize(maxSize);
+            }
+        }
+    };
+
+    public RetainedTileCache(long maxSize){
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 保留一张图片的分块，同一张图片之前保留的分块会被替换
+     * @param uri 图片
+     * @param contentStamp 图片内容的标记 {@link TileDiskCache#contentStamp(Uri, long)}
+     * @param segSize 分块大小
+     * @param config 分块的位图格式
+     * @param tiles key 为 {@link EncodeBitmapHelper#getKey(int, int)} 的分块
+     */
+    public synchronized void put(Uri uri, int contentStamp, int segSize, Bitmap.Config config, SparseArray<Bitmap> tiles){
+        if(uri == null || tiles == null || tiles.size() == 0){
+            return;
+        }
+
+        long key = TileDiskCache.hashUri(uri, contentStamp, segSize, config);
+        removeEntry(key, true);
+
+        Entry entry = new Entry();
+        entry.uri = uri;
+        entry.contentStamp = contentStamp;
+        entry.segSize = segSize;
+        entry.config = config;
+        entry.tiles = tiles;
+        entry.retainTime = SystemClock.uptimeMillis();
+        for(int i = 0, count = tiles.size(); i < count; ++i){
+            entry.byteCount += tiles.valueAt(i).getByteCount();
+        }
+        entries.put(key, entry);
+        size += entry.byteCount;
+
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 取回一张图片保留的分块，取回之后不再保留，图片内容变了的时候取不到
+     * @return 没有的话返回 null
+     */
+    public synchronized SparseArray<Bitmap> take(Uri uri, int contentStamp, int segSize, Bitmap.Config config){
+        if(uri == null){
+            return null;
+        }
+
+        long key = TileDiskCache.hashUri(uri, contentStamp, segSize, config);
+        Entry entry = entries.get(key);
+        if(entry == null || !uri.equals(entry.uri) || entry.contentStamp != contentStamp
+                || entry.segSize != segSize || entry.config != config){
+            return null;
+        }
+        removeEntry(key, false);
+        return entry.tiles;
+    }
+
+    public synchronized void setMaxSize(long maxSize){
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 设置分块放入之后保留多久
+     * @param retainTime ms，默认 60s
+     */
+    public synchronized void setRetainTime(long retainTime){
+        this.retainTime = Math.max(0, retainTime);
+        trimToSize(maxSize);
+    }
+
+    public synchronized void clear(){
+        trimToSize(0);
+    }
+
+    /**
+     * 移除超出大小或者已经过期的，需要在锁里调用
+     * @param maxSize
+     */
+    private void trimToSize(long maxSize){
+        long now = SystemClock.uptimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()){
+            Entry entry = iterator.next();
+            if(size <= maxSize && now - entry.retainTime < retainTime){
+                break;
+            }
+            iterator.remove();
+            size -= entry.byteCount;
+            recycleTiles(entry);
+        }
+
+        if(!entries.isEmpty() && !isExpirePosted){
+            // 最早放入的一组过期的时候再检查
+            long delay = entries.values().iterator().next().retainTime + retainTime - now;
+            isExpirePosted = true;
+            handler.postDelayed(expireRunnable, Math.max(0, delay));
+        }
+    }
+
+    private void removeEntry(long key, boolean recycle){
+        Entry entry = entries.remove(key);
+        if(entry == null){
+            return;
+        }
+        size -= entry.byteCount;
+        if(recycle){
+            recycleTiles(entry);
+        }
+    }
+
+    private static void recycleTiles(Entry entry){
+        TileBitmapPool pool = TileBitmapPool.getInstance();
+        for(int i = 0, count = entry.tiles.size(); i < count; ++i){
+            pool.put(entry.tiles.valueAt(i));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.voiddog.zoomabledrawee;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * 分块位图复用池
+ * 从 LruSparseCache 中移除并且已经不会再被绘制的分块放到这里，解码新的分块的时候作为 inBitmap 复用，
+ * 按照 宽、高、Config 分桶，只有完全一致的才会复用，边缘上大小不一样的分块会放在各自的桶里
+ *
+ * @author agent
+ * @since 2026-10-18 06:32
+ */
+
+
+public class TileBitmapPool {
+
+    private static TileBitmapPool sInstance;
+
+    public static synchronized TileBitmapPool getInstance(){
+        if(sInstance == null){
+            sInstance = new TileBitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 最大缓存大小，byte count
+     */
+    private long maxSize;
+
+    /**
+     * 当前缓存占用大小
+     */
+    private long size;
+
+    /**
+     * 分桶后的位图
+     */
+    private HashMap<Long, ArrayDeque<Bitmap>> buckets = new HashMap<>();
+
+    /**
+     * 放入的先后顺序，超出大小的时候先移除最早放入的
+     */
+    private ArrayDeque<Bitmap> insertOrder = new ArrayDeque<>();
+
+    public TileBitmapPool(long maxSize){
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 取出一个可以复用的位图
+     * @return 没有的话返回 null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+        ArrayDeque<Bitmap> bucket = buckets.get(getBucketKey(width, height, config));
+        if(bucket == null || bucket.isEmpty()){
+            return null;
+        }
+
+        Bitmap bitmap = bucket.pop();
+        insertOrder.remove(bitmap);
+        size -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * 放入一个已经不再使用的位图
+     * @param bitmap 需要是 mutable 的
+     */
+    public synchronized void put(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getByteCount() > maxSize){
+            return;
+        }
+
+        long bucketKey = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = buckets.get(bucketKey);
+        if(bucket == null){
+            bucket = new ArrayDeque<>();
+            buckets.put(bucketKey, bucket);
+        }
+        bucket.push(bitmap);
+        insertOrder.add(bitmap);
+        size += bitmap.getByteCount();
+
+        trimToSize(maxSize);
+    }
+
+    public synchronized void setMaxSize(long maxSize){
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized void clear(){
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxSize){
+        while (size > maxSize && !insertOrder.isEmpty()){
+            Bitmap bitmap = insertOrder.poll();
+            buckets.get(getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+            size -= bitmap.getByteCount();
+        }
+    }
+
+    private static long getBucketKey(int width, int height, Bitmap.Config config){
+        int configOrdinal = config == null ? 0xff : config.ordinal();
+        return ((long) width << 36) | ((long) height << 8) | configOrdinal;
+    }
+}
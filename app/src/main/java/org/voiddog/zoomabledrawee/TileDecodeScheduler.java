@@ -0,0 +1,310 @@
+package org.voiddog.zoomabledrawee;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 全局共享的分块解码调度器
+ * 所有的 EncodeBitmapHelper 共用同一组解码线程，每个视图对应一个 Client，
+ * 线程每次从最近活跃（提交任务或者绘制）的 Client 里取任务，保证当前可见的页面优先解码，
+ * 同一个 Client 里的任务按照取出时的 {@link Task#getPriority()} 从小到大执行，
+ * 只取 {@link Task#isReady()} 的任务，比如图片的解码器都被占用的时候先取别的 Client 的任务，
+ * 线程不会阻塞在某一个 Client 上
+ *
+ * @author agent
+ * @since 2026-10-18 06:30
+ */
+
+
+public class TileDecodeScheduler {
+
+    private static TileDecodeScheduler sInstance;
+
+    /**
+     * 解码线程个数，0 表示使用 cpu 的个数
+     */
+    private static int sThreadCount = 0;
+
+    /**
+     * 解码线程优先级
+     */
+    private static int sThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+
+    /**
+     * 后台任务的线程个数，一个页面创建解码会话的时候不会挡住别的页面加载
+     */
+    private static final int MIN_BACKGROUND_THREAD_COUNT = 2;
+    private static final int MAX_BACKGROUND_THREAD_COUNT = 4;
+
+    /**
+     * 配置解码线程，需要在第一次使用之前调用，比如 Application.onCreate
+     * @param threadCount 线程个数，小于等于0表示使用 cpu 的个数
+     * @param threadPriority 线程优先级，参见 {@link Process#setThreadPriority(int)}
+     */
+    public static synchronized void config(int threadCount, int threadPriority){
+        if(sInstance != null){
+            throw new IllegalStateException("TileDecodeScheduler has been initialized");
+        }
+        sThreadCount = threadCount;
+        sThreadPriority = threadPriority;
+    }
+
+    /**
+     * 可以调度的任务
+     */
+    public interface Task extends Runnable {
+        /**
+         * 任务的优先级，每次取任务的时候重新获取，所以可以随时变化
+         * @return 数值越小越先执行
+         */
+        long getPriority();
+
+        /**
+         * 现在是否可以执行，比如需要的解码器是否有空闲的，不能执行的任务留在队列里，
+         * 在调度器的锁里调用，不能在里面取得提交任务时可能持有的锁
+         * @return
+         */
+        boolean isReady();
+    }
+
+    public static synchronized TileDecodeScheduler getInstance(){
+        if(sInstance == null){
+            int threadCount = sThreadCount > 0 ? sThreadCount : EncodeBitmapHelper.getNumberOfCPUCores();
+            sInstance = new TileDecodeScheduler(threadCount, sThreadPriority);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 有任务在排队的 client
+     */
+    private final List<Client> pendingClients = new ArrayList<>();
+
+    /**
+     * 轮询的起始位置，最近提交时间相同的时候轮流执行
+     */
+    private int roundRobinIndex = 0;
+
+    /**
+     * 取任务的时候已经检查过、没有可以执行的任务的 client
+     */
+    private final List<Client> skippedClients = new ArrayList<>();
+
+    /**
+     * 后台任务，比如数据源的回调、创建解码会话
+     */
+    private final ExecutorService backgroundExecutor;
+
+    private TileDecodeScheduler(int threadCount, final int threadPriority){
+        for(int i = 0; i < threadCount; ++i){
+            Thread thread = new Thread(new Worker(threadPriority), "TileDecode-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        int backgroundThreadCount = Math.max(MIN_BACKGROUND_THREAD_COUNT,
+                Math.min(MAX_BACKGROUND_THREAD_COUNT, threadCount));
+        backgroundExecutor = Executors.newFixedThreadPool(backgroundThreadCount, new ThreadFactory() {
+
+            private final AtomicInteger threadIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        r.run();
+                    }
+                }, "TileDecode-background-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 创建一个新的 client，每个视图一个
+     * @return
+     */
+    public Client newClient(){
+        return new Client();
+    }
+
+    /**
+     * @return 执行后台任务的线程池
+     */
+    public Executor forBackgroundTasks(){
+        return backgroundExecutor;
+    }
+
+    /**
+     * 取出下一个需要执行的任务，没有可以执行的任务的时候等待
+     * @return
+     */
+    private synchronized Task takeTask() throws InterruptedException {
+        for(;;){
+            Client target = null;
+            Task task = null;
+            int size = pendingClients.size();
+            skippedClients.clear();
+            // 从最近活跃的 client 开始，没有可以执行的任务的时候再看下一个
+            for(;;){
+                target = null;
+                for(int i = 0; i < size; ++i){
+                    Client client = pendingClients.get((roundRobinIndex + i) % size);
+                    if(!skippedClients.contains(client)
+                            && (target == null || client.lastActiveTime > target.lastActiveTime)){
+                        target = client;
+                    }
+                }
+                if(target == null){
+                    break;
+                }
+                task = target.pollHighestPriority();
+                if(task != null){
+                    break;
+                }
+                skippedClients.add(target);
+            }
+            skippedClients.clear();
+
+            if(task == null){
+                wait();
+                continue;
+            }
+
+            roundRobinIndex = (roundRobinIndex + 1) % size;
+            if(target.tasks.isEmpty()){
+                pendingClients.remove(target);
+            }
+            return task;
+        }
+    }
+
+    public class Client {
+
+        private final ArrayList<Task> tasks = new ArrayList<>();
+
+        /**
+         * 最后一次提交任务或者绘制的时间
+         */
+        private volatile long lastActiveTime;
+
+        private Client(){}
+
+        /**
+         * 页面正在显示，没有提交新的任务也保持排在前面，每一帧调用，不加锁
+         */
+        public void markActive(){
+            lastActiveTime = SystemClock.uptimeMillis();
+        }
+
+        public void submit(Task task){
+            submit(task, true);
+        }
+
+        /**
+         * 提交后台任务，不更新最后活跃的时间，不会让这个 client 排到正在显示的页面前面
+         * @param task
+         */
+        public void submitBackground(Task task){
+            submit(task, false);
+        }
+
+        private void submit(Task task, boolean updateSubmitTime){
+            synchronized (TileDecodeScheduler.this){
+                tasks.add(task);
+                if(updateSubmitTime){
+                    lastActiveTime = SystemClock.uptimeMillis();
+                }
+                if(!pendingClients.contains(this)){
+                    pendingClients.add(this);
+                }
+                TileDecodeScheduler.this.notify();
+            }
+        }
+
+        /**
+         * 之前不能执行的任务可能已经可以执行了，比如归还了解码器，唤醒等待的线程重新取任务
+         */
+        public void notifyReady(){
+            synchronized (TileDecodeScheduler.this){
+                TileDecodeScheduler.this.notifyAll();
+            }
+        }
+
+        /**
+         * 清除还没有开始执行的任务
+         */
+        public void clear(){
+            synchronized (TileDecodeScheduler.this){
+                tasks.clear();
+                pendingClients.remove(this);
+            }
+        }
+
+        /**
+         * 取出可以执行的任务中优先级最高的，任务数量不多，直接遍历
+         * @return 没有可以执行的任务的时候返回 null
+         */
+        private Task pollHighestPriority(){
+            int bestIndex = -1;
+            long bestPriority = Long.MAX_VALUE;
+            for(int i = 0, size = tasks.size(); i < size; ++i){
+                Task task = tasks.get(i);
+                if(!task.isReady()){
+                    continue;
+                }
+                long priority = task.getPriority();
+                if(bestIndex < 0 || priority < bestPriority){
+                    bestPriority = priority;
+                    bestIndex = i;
+                }
+            }
+            if(bestIndex < 0){
+                return null;
+            }
+            int lastIndex = tasks.size() - 1;
+            Task task = tasks.get(bestIndex);
+            tasks.set(bestIndex, tasks.get(lastIndex));
+            tasks.remove(lastIndex);
+            return task;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private int threadPriority;
+
+        private Worker(int threadPriority){
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(threadPriority);
+            for(;;){
+                Task task;
+                try {
+                    task = takeTask();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
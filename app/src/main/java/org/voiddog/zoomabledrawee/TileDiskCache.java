@@ -0,0 +1,680 @@
+package org.voiddog.zoomabledrawee;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Process;
+
+import com.facebook.common.util.UriUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 已解码分块的磁盘缓存
+ * 分块按照 (图片, 内容标记, 分割大小, key) 保存为原始像素文件，读取的时候直接拷贝到复用池里的位图，不需要再解码。
+ * 内容标记来自未解码数据的大小，本地文件还包括修改时间，同一个 uri 的内容变了之后旧的分块不会再被读到。
+ * 索引是一个内存映射的文件，固定个数的槽位，每个分块在以哈希值为起点的几个槽位中查找，
+ * 查找只是几次内存读取；超出大小限制的时候用时钟算法淘汰最近没有访问过的分块。
+ * 每个分块文件的头部也保存了一份 key，读取的时候校验，所以文件的读写不需要加锁。
+ * 打开缓存和异步写入都在一个最低优先级的线程上执行，不占用解码线程和其它后台任务
+ *
+ * @author agent
+ * @since 2026-10-18 06:43
+ */
+
+
+public class TileDiskCache {
+
+    private static final String DIR_NAME = "zoomable_tiles";
+    private static final String INDEX_NAME = "index";
+    private static final String TILE_SUFFIX = ".tile";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x5a544443;
+    private static final int VERSION = 2;
+
+    /**
+     * 索引头部：magic、version、槽位个数
+     */
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    /**
+     * 槽位：uriHash(8)、key(4)、width(4)、height(4)、config(4)、byteCount(4)、contentStamp(4)，config 为 0 表示空槽位
+     */
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_URI_HASH = 0;
+    private static final int SLOT_KEY = 8;
+    private static final int SLOT_WIDTH = 12;
+    private static final int SLOT_HEIGHT = 16;
+    private static final int SLOT_CONFIG = 20;
+    private static final int SLOT_BYTE_COUNT = 24;
+    private static final int SLOT_CONTENT_STAMP = 28;
+
+    /**
+     * 分块文件的头部，和槽位的格式一样
+     */
+    private static final int FILE_HEADER_SIZE = SLOT_SIZE;
+
+    private static final int DEFAULT_SLOT_COUNT = 2048;
+
+    /**
+     * 每个分块最多查找的槽位个数
+     */
+    private static final int PROBE_COUNT = 8;
+
+    /**
+     * 最多同时等待写入的分块个数，{@link #put} 超出的直接丢弃，{@link #write} 超出的时候等待
+     */
+    private static final int MAX_PENDING_WRITES = 8;
+
+    /**
+     * 最多保留的空闲写入缓冲区个数
+     */
+    private static final int MAX_FREE_WRITE_BUFFERS = 2;
+
+    private static final long DEFAULT_MAX_SIZE = 128L * 1024 * 1024;
+
+    private static TileDiskCache sInstance;
+
+    /**
+     * 打开缓存和写入文件的线程
+     */
+    private static final ExecutorService sIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    r.run();
+                }
+            }, "TileDiskCache-io");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public interface OnOpenListener {
+        /**
+         * 在缓存的 io 线程回调
+         * @param tileDiskCache
+         */
+        void onOpen(TileDiskCache tileDiskCache);
+    }
+
+    /**
+     * 在后台线程打开缓存，打开之后回调，缓存目录不可用的时候不回调
+     * @param context
+     * @param listener
+     */
+    public static void openInstance(Context context, final OnOpenListener listener){
+        final Context appContext = context.getApplicationContext();
+        sIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TileDiskCache tileDiskCache = getInstance(appContext);
+                if(tileDiskCache != null){
+                    listener.onOpen(tileDiskCache);
+                }
+            }
+        });
+    }
+
+    /**
+     * 第一次调用的时候会读写索引文件，不要在 UI 线程调用，UI 线程使用 {@link #openInstance(Context, OnOpenListener)}
+     * @param context
+     * @return 缓存目录不可用的时候返回 null
+     */
+    public static synchronized TileDiskCache getInstance(Context context){
+        if(sInstance == null){
+            File dir = new File(context.getApplicationContext().getCacheDir(), DIR_NAME);
+            try {
+                sInstance = new TileDiskCache(dir, DEFAULT_SLOT_COUNT, DEFAULT_MAX_SIZE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 图片内容的标记，uri 相同但是内容不同的时候不同
+     * 网络图片的 uri 对应 Fresco 的缓存 key，再加上未解码数据的大小；本地文件还加上修改时间，会读文件，不要在 UI 线程调用
+     * @param uri
+     * @param encodeLength 完整的未解码数据大小
+     * @return
+     */
+    public static int contentStamp(Uri uri, long encodeLength){
+        long stamp = encodeLength;
+        if(UriUtil.isLocalFileUri(uri) && uri.getPath() != null){
+            stamp = stamp * 31 + new File(uri.getPath()).lastModified();
+        }
+        return (int) (stamp ^ (stamp >>> 32));
+    }
+
+    /**
+     * 图片的哈希值，内容、分割大小或者位图格式不同的分块不能共用
+     * @param uri
+     * @param contentStamp {@link #contentStamp(Uri, long)}
+     * @param segSize 位图分割大小
+     * @param config 分块的位图格式
+     * @return
+     */
+    public static long hashUri(Uri uri, int contentStamp, int segSize, Bitmap.Config config){
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        String str = uri.toString();
+        for(int i = 0, length = str.length(); i < length; ++i){
+            hash = (hash ^ str.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ contentStamp) * 0x100000001b3L;
+        hash = (hash ^ segSize) * 0x100000001b3L;
+        return (hash ^ (config == null ? 0xff : config.ordinal())) * 0x100000001b3L;
+    }
+
+    private final File dir;
+
+    private final int slotCount;
+
+    private final MappedByteBuffer index;
+
+    /**
+     * 时钟算法的访问标记，不需要持久化
+     */
+    private final boolean[] referenced;
+
+    private int clockHand = 0;
+
+    /**
+     * 最大缓存大小，byte count
+     */
+    private long maxSize;
+
+    /**
+     * 当前缓存占用大小
+     */
+    private long size;
+
+    private int pendingWrites = 0;
+
+    private int tempFileId = 0;
+
+    /**
+     * 空闲的写入缓冲区
+     */
+    private final ArrayDeque<ByteBuffer> freeWriteBuffers = new ArrayDeque<>();
+
+    /**
+     * 读取用的缓冲区，每个解码线程一个
+     */
+    private final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<>();
+
+    public TileDiskCache(File dir, int slotCount, long maxSize) throws IOException {
+        if(!dir.exists() && !dir.mkdirs()){
+            throw new IOException("can not create " + dir);
+        }
+
+        this.dir = dir;
+        this.slotCount = slotCount;
+        this.maxSize = maxSize;
+        referenced = new boolean[slotCount];
+
+        int length = INDEX_HEADER_SIZE + slotCount * SLOT_SIZE;
+        RandomAccessFile indexFile = new RandomAccessFile(new File(dir, INDEX_NAME), "rw");
+        try {
+            boolean isValid = indexFile.length() == length;
+            indexFile.setLength(length);
+            // 关闭文件之后映射仍然有效
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if(!isValid || index.getInt(0) != MAGIC || index.getInt(4) != VERSION || index.getInt(8) != slotCount){
+                resetIndex();
+            }
+        } finally {
+            indexFile.close();
+        }
+
+        for(int slot = 0; slot < slotCount; ++slot){
+            if(!isEmpty(slot)){
+                size += index.getInt(slotOffset(slot) + SLOT_BYTE_COUNT);
+            }
+        }
+        deleteOrphanFiles();
+        trimToSize(maxSize, -1);
+    }
+
+    public synchronized void setMaxSize(long maxSize){
+        this.maxSize = maxSize;
+        trimToSize(maxSize, -1);
+    }
+
+    /**
+     * 只查找索引，不读取文件
+     * @return 是否有缓存
+     */
+    public synchronized boolean contains(long uriHash, int contentStamp, int key){
+        return findSlot(uriHash, contentStamp, key) >= 0;
+    }
+
+    /**
+     * 读取分块，会读文件，不要在 UI 线程调用
+     * @param uriHash {@link #hashUri(Uri, int, int, Bitmap.Config)}
+     * @param contentStamp {@link #contentStamp(Uri, long)}，和槽位里保存的一起校验
+     * @param key 分块的 key
+     * @return 没有缓存的时候返回 null，位图优先从 {@link TileBitmapPool} 中获取
+     */
+    public Bitmap get(long uriHash, int contentStamp, int key){
+        int slot, width, height, byteCount;
+        Bitmap.Config config;
+        synchronized (this){
+            slot = findSlot(uriHash, contentStamp, key);
+            if(slot < 0){
+                return null;
+            }
+            referenced[slot] = true;
+            int offset = slotOffset(slot);
+            width = index.getInt(offset + SLOT_WIDTH);
+            height = index.getInt(offset + SLOT_HEIGHT);
+            config = configOf(index.getInt(offset + SLOT_CONFIG));
+            byteCount = index.getInt(offset + SLOT_BYTE_COUNT);
+        }
+
+        ByteBuffer buffer = readTileFile(slot, uriHash, contentStamp, key, byteCount);
+        if(buffer == null || config == null){
+            // 文件已经损坏或者被替换
+            synchronized (this){
+                if(findSlot(uriHash, contentStamp, key) == slot){
+                    evict(slot);
+                }
+            }
+            return null;
+        }
+
+        Bitmap bitmap = TileBitmapPool.getInstance().get(width, height, config);
+        try {
+            if(bitmap == null){
+                bitmap = Bitmap.createBitmap(width, height, config);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * 写入分块，像素在调用线程拷贝，文件在后台线程写入，调用返回之后位图就可以复用
+     * @param uriHash {@link #hashUri(Uri, int, int, Bitmap.Config)}
+     * @param contentStamp {@link #contentStamp(Uri, long)}，和槽位里保存的一起校验
+     * @param key 分块的 key
+     * @param bitmap
+     */
+    public void put(long uriHash, int contentStamp, int key, Bitmap bitmap){
+        WriteTask task = prepareWrite(uriHash, contentStamp, key, bitmap, true);
+        if(task != null){
+            sIoExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 写入分块，和 {@link #put} 一样在后台线程写入文件，但是不会丢弃，
+     * 等待写入的个数达到上限时调用线程等待，用于本身就在后台批量生成分块的任务，不能在解码线程调用
+     * @param uriHash {@link #hashUri(Uri, int, int, Bitmap.Config)}
+     * @param contentStamp {@link #contentStamp(Uri, long)}，和槽位里保存的一起校验
+     * @param key 分块的 key
+     * @param bitmap
+     */
+    public void write(long uriHash, int contentStamp, int key, Bitmap bitmap){
+        WriteTask task = prepareWrite(uriHash, contentStamp, key, bitmap, false);
+        if(task != null){
+            sIoExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 拷贝像素
+     * @param limitPending 是否限制等待写入的个数，不限制的时候等到个数低于上限
+     * @return 不需要写入的时候返回 null
+     */
+    private WriteTask prepareWrite(long uriHash, int contentStamp, int key, Bitmap bitmap, boolean limitPending){
+        if(bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null){
+            return null;
+        }
+
+        int byteCount = bitmap.getByteCount();
+        ByteBuffer buffer;
+        synchronized (this){
+            while (!limitPending && pendingWrites >= MAX_PENDING_WRITES){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if(byteCount > maxSize || (limitPending && pendingWrites >= MAX_PENDING_WRITES)
+                    || findSlot(uriHash, contentStamp, key) >= 0){
+                return null;
+            }
+            ++pendingWrites;
+            buffer = obtainWriteBuffer(FILE_HEADER_SIZE + byteCount);
+        }
+
+        buffer.putLong(SLOT_URI_HASH, uriHash);
+        buffer.putInt(SLOT_KEY, key);
+        buffer.putInt(SLOT_WIDTH, bitmap.getWidth());
+        buffer.putInt(SLOT_HEIGHT, bitmap.getHeight());
+        buffer.putInt(SLOT_CONFIG, bitmap.getConfig().ordinal() + 1);
+        buffer.putInt(SLOT_BYTE_COUNT, byteCount);
+        buffer.putInt(SLOT_CONTENT_STAMP, contentStamp);
+        buffer.position(FILE_HEADER_SIZE);
+        try {
+            bitmap.copyPixelsToBuffer(buffer);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            synchronized (this){
+                --pendingWrites;
+                notifyAll();
+                recycleWriteBuffer(buffer);
+            }
+            return null;
+        }
+        buffer.flip();
+        return new WriteTask(uriHash, contentStamp, key, buffer);
+    }
+
+    /**
+     * 清除所有的分块
+     */
+    public synchronized void clear(){
+        trimToSize(0, -1);
+    }
+
+    // ------------------------------- 索引 ---------------------------------
+
+    private static int slotOffset(int slot){
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private boolean isEmpty(int slot){
+        return index.getInt(slotOffset(slot) + SLOT_CONFIG) == 0;
+    }
+
+    private int probeStart(long uriHash, int key){
+        long h = (uriHash ^ key) * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % slotCount);
+    }
+
+    /**
+     * @return 找不到的时候返回 -1
+     */
+    private int findSlot(long uriHash, int contentStamp, int key){
+        int start = probeStart(uriHash, key);
+        for(int i = 0; i < PROBE_COUNT; ++i){
+            int slot = (start + i) % slotCount;
+            int offset = slotOffset(slot);
+            if(!isEmpty(slot) && index.getLong(offset + SLOT_URI_HASH) == uriHash
+                    && index.getInt(offset + SLOT_KEY) == key
+                    && index.getInt(offset + SLOT_CONTENT_STAMP) == contentStamp){
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 在查找范围内选一个槽位，优先选空的，没有的话按照时钟算法选一个最近没有访问过的
+     * @return
+     */
+    private int chooseSlot(long uriHash, int contentStamp, int key){
+        int slot = findSlot(uriHash, contentStamp, key);
+        if(slot >= 0){
+            return slot;
+        }
+
+        int start = probeStart(uriHash, key);
+        for(int i = 0; i < PROBE_COUNT; ++i){
+            slot = (start + i) % slotCount;
+            if(isEmpty(slot)){
+                return slot;
+            }
+        }
+        for(int i = 0; i < PROBE_COUNT; ++i){
+            slot = (start + i) % slotCount;
+            if(!referenced[slot]){
+                return slot;
+            }
+            referenced[slot] = false;
+        }
+        return start;
+    }
+
+    private void evict(int slot){
+        if(isEmpty(slot)){
+            return;
+        }
+        int offset = slotOffset(slot);
+        size -= index.getInt(offset + SLOT_BYTE_COUNT);
+        index.putInt(offset + SLOT_CONFIG, 0);
+        referenced[slot] = false;
+        new File(dir, slot + TILE_SUFFIX).delete();
+    }
+
+    /**
+     * 时钟算法淘汰分块，直到大小不超过 maxSize
+     * @param keepSlot 不淘汰的槽位，-1 表示没有
+     */
+    private void trimToSize(long maxSize, int keepSlot){
+        for(int i = 0; size > maxSize && i < slotCount * 2; ++i){
+            int slot = clockHand;
+            clockHand = (clockHand + 1) % slotCount;
+            if(slot == keepSlot || isEmpty(slot)){
+                continue;
+            }
+            if(referenced[slot] && maxSize > 0){
+                referenced[slot] = false;
+                continue;
+            }
+            evict(slot);
+        }
+    }
+
+    private void resetIndex(){
+        for(int i = 0, length = index.capacity(); i < length; i += 4){
+            index.putInt(i, 0);
+        }
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(8, slotCount);
+    }
+
+    /**
+     * 删除索引里没有的文件和没有写完的临时文件
+     */
+    private void deleteOrphanFiles(){
+        File[] files = dir.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            String name = file.getName();
+            if(name.equals(INDEX_NAME)){
+                continue;
+            }
+            if(name.endsWith(TILE_SUFFIX)){
+                try {
+                    int slot = Integer.parseInt(name.substring(0, name.length() - TILE_SUFFIX.length()));
+                    if(slot >= 0 && slot < slotCount && !isEmpty(slot)){
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // 不认识的文件
+                }
+            }
+            file.delete();
+        }
+    }
+
+    private static Bitmap.Config configOf(int value){
+        Bitmap.Config[] configs = Bitmap.Config.values();
+        return value > 0 && value <= configs.length ? configs[value - 1] : null;
+    }
+
+    // ------------------------------- 文件 ---------------------------------
+
+    /**
+     * 读取并校验分块文件
+     * @return 像素数据，校验失败的时候返回 null
+     */
+    private ByteBuffer readTileFile(int slot, long uriHash, int contentStamp, int key, int byteCount){
+        ByteBuffer buffer = readBuffers.get();
+        int length = FILE_HEADER_SIZE + byteCount;
+        if(buffer == null || buffer.capacity() < length){
+            buffer = ByteBuffer.allocateDirect(length);
+            readBuffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(new File(dir, slot + TILE_SUFFIX));
+            FileChannel channel = fis.getChannel();
+            while (buffer.hasRemaining()){
+                if(channel.read(buffer) < 0){
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(fis);
+        }
+
+        if(buffer.getLong(SLOT_URI_HASH) != uriHash || buffer.getInt(SLOT_KEY) != key
+                || buffer.getInt(SLOT_BYTE_COUNT) != byteCount || buffer.getInt(SLOT_CONTENT_STAMP) != contentStamp){
+            return null;
+        }
+        buffer.position(FILE_HEADER_SIZE);
+        return buffer;
+    }
+
+    private ByteBuffer obtainWriteBuffer(int length){
+        ByteBuffer buffer = freeWriteBuffers.poll();
+        if(buffer == null || buffer.capacity() < length){
+            buffer = ByteBuffer.allocateDirect(length);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    private void recycleWriteBuffer(ByteBuffer buffer){
+        if(freeWriteBuffers.size() < MAX_FREE_WRITE_BUFFERS){
+            freeWriteBuffers.push(buffer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        if(closeable == null){
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 先写入临时文件，再在锁里改名并更新索引，读取的线程不会看到写了一半的文件
+     */
+    private class WriteTask implements Runnable {
+
+        private long uriHash;
+
+        private int contentStamp;
+
+        private int key;
+
+        private ByteBuffer buffer;
+
+        private WriteTask(long uriHash, int contentStamp, int key, ByteBuffer buffer){
+            this.uriHash = uriHash;
+            this.contentStamp = contentStamp;
+            this.key = key;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            File tempFile;
+            synchronized (TileDiskCache.this){
+                tempFile = new File(dir, (tempFileId++) + TEMP_SUFFIX);
+            }
+
+            boolean isWritten = false;
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(tempFile);
+                FileChannel channel = fos.getChannel();
+                while (buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                isWritten = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(fos);
+            }
+
+            synchronized (TileDiskCache.this){
+                --pendingWrites;
+                TileDiskCache.this.notifyAll();
+                if(isWritten){
+                    commit(tempFile);
+                } else {
+                    tempFile.delete();
+                }
+                recycleWriteBuffer(buffer);
+            }
+        }
+
+        private void commit(File tempFile){
+            int slot = chooseSlot(uriHash, contentStamp, key);
+            evict(slot);
+            if(!tempFile.renameTo(new File(dir, slot + TILE_SUFFIX))){
+                tempFile.delete();
+                return;
+            }
+
+            int offset = slotOffset(slot);
+            index.putLong(offset + SLOT_URI_HASH, uriHash);
+            index.putInt(offset + SLOT_KEY, key);
+            index.putInt(offset + SLOT_WIDTH, buffer.getInt(SLOT_WIDTH));
+            index.putInt(offset + SLOT_HEIGHT, buffer.getInt(SLOT_HEIGHT));
+            index.putInt(offset + SLOT_BYTE_COUNT, buffer.getInt(SLOT_BYTE_COUNT));
+            index.putInt(offset + SLOT_CONTENT_STAMP, contentStamp);
+            // config 最后写入，非空的槽位总是完整的
+            index.putInt(offset + SLOT_CONFIG, buffer.getInt(SLOT_CONFIG));
+            size += buffer.getInt(SLOT_BYTE_COUNT);
+            referenced[slot] = true;
+            trimToSize(maxSize, slot);
+        }
+    }
+}
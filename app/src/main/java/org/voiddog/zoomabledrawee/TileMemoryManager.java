@@ -0,0 +1,261 @@
+package org.voiddog.zoomabledrawee;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 全局的分块内存管理
+ * 按照设备的内存等级得到所有分块相关内存的总预算，先分出复用池和跨图片保留的分块，
+ * 剩下的再按照是否可见分给当前所有的 EncodeBitmapHelper，可见的页面分到的更多，不可见的页面只保留一小部分；
+ * 系统内存紧张的时候按照 onTrimMemory 的等级缩小或者清空缓存和复用池，一段时间之后再恢复。
+ * 页面是否可见由视图是否显示在屏幕上决定，和最近有没有绘制无关，静止的页面不会被当作不可见。
+ * 所有的状态只在管理线程上访问，其他线程只是提交消息，重新分配只在页面注册、显示状态变化或者内存紧张的时候进行
+ *
+ * @author agent
+ * @since 2026-10-18 06:49
+ */
+
+
+public class TileMemoryManager implements ComponentCallbacks2 {
+
+    /**
+     * 内存紧张之后多久恢复预算，ms
+     */
+    private static final long PRESSURE_RECOVER_TIME = 30 * 1000;
+
+    /**
+     * 可见的页面和不可见的页面分到预算的比例
+     */
+    private static final int VISIBLE_WEIGHT = 4;
+    private static final int INVISIBLE_WEIGHT = 1;
+
+    /**
+     * 复用池占总预算的比例
+     */
+    private static final int POOL_BUDGET_DIVIDER = 8;
+
+    /**
+     * 跨图片保留的分块占总预算的比例
+     */
+    private static final int RETAINED_BUDGET_DIVIDER = 4;
+
+    /**
+     * 每个页面最少的缓存大小
+     */
+    private static final long MIN_CACHE_SIZE = 1024 * 1024;
+
+    private static TileMemoryManager sInstance;
+
+    public static synchronized TileMemoryManager getInstance(Context context){
+        if(sInstance == null){
+            Context appContext = context.getApplicationContext();
+            sInstance = new TileMemoryManager(computeTotalBudget(appContext));
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 普通设备使用堆大小的四分之一，低内存设备使用八分之一
+     * @param context
+     * @return
+     */
+    private static long computeTotalBudget(Context context){
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapSize = Math.min((long) am.getMemoryClass() * 1024 * 1024, Runtime.getRuntime().maxMemory());
+        boolean isLowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && am.isLowRamDevice();
+        return heapSize / (isLowRam ? 8 : 4);
+    }
+
+    private final long totalBudget;
+
+    /**
+     * 只在管理线程上访问
+     */
+    private final List<EncodeBitmapHelper> helpers = new ArrayList<>();
+
+    /**
+     * 内存紧张时预算的缩小比例，和开始的时间，只在管理线程上访问
+     */
+    private float pressureFactor = 1;
+    private long pressureTime;
+
+    /**
+     * 管理线程，缩放缓存的时候会等待页面的锁，不能放在 UI 线程
+     */
+    private final Handler handler;
+
+    private final AtomicBoolean isRebalancePosted = new AtomicBoolean(false);
+
+    private final Runnable rebalanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isRebalancePosted.set(false);
+            rebalance();
+        }
+    };
+
+    /**
+     * 内存紧张过后恢复预算
+     */
+    private final Runnable recoverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rebalance();
+        }
+    };
+
+    public TileMemoryManager(long totalBudget){
+        this.totalBudget = totalBudget;
+        HandlerThread thread = new HandlerThread("TileMemoryManager", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public long getTotalBudget(){
+        return totalBudget;
+    }
+
+    /**
+     * 页面开始使用分块缓存
+     * @param helper
+     */
+    public void register(final EncodeBitmapHelper helper){
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!helpers.contains(helper)){
+                    helpers.add(helper);
+                }
+                rebalance();
+            }
+        });
+    }
+
+    public void unregister(final EncodeBitmapHelper helper){
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(helpers.remove(helper)){
+                    rebalance();
+                }
+            }
+        });
+    }
+
+    /**
+     * 页面显示或者不再显示在屏幕上，连续的变化只提交一次重新分配
+     * @param helper
+     */
+    public void notifyVisibilityChanged(EncodeBitmapHelper helper){
+        if(isRebalancePosted.compareAndSet(false, true)){
+            handler.post(rebalanceRunnable);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL){
+                    // 进程随时可能被杀，或者前台已经非常紧张，清空所有可以重建的数据
+                    flush(false);
+                } else if(level >= TRIM_MEMORY_UI_HIDDEN){
+                    flush(true);
+                } else if(level >= TRIM_MEMORY_RUNNING_LOW){
+                    applyPressure(0.5f);
+                } else if(level >= TRIM_MEMORY_RUNNING_MODERATE){
+                    applyPressure(0.75f);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onLowMemory() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush(false);
+            }
+        });
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * 缩小预算，释放已经离开窗口的页面，清空复用池和保留的分块
+     * @param factor 预算的比例
+     */
+    private void applyPressure(float factor){
+        pressureFactor = Math.min(pressureFactor, factor);
+        pressureTime = SystemClock.uptimeMillis();
+        // 释放的时候会取消注册，遍历副本
+        for(EncodeBitmapHelper helper : new ArrayList<>(helpers)){
+            helper.releaseLinger();
+        }
+        RetainedTileCache.getInstance().clear();
+        TileBitmapPool.getInstance().clear();
+        rebalance();
+    }
+
+    /**
+     * 清空缓存和复用池
+     * @param keepVisible 是否保留可见页面的缓存
+     */
+    private void flush(boolean keepVisible){
+        for(EncodeBitmapHelper helper : helpers){
+            if(!keepVisible || !helper.isShown()){
+                helper.clearCache();
+            }
+        }
+        applyPressure(0.5f);
+    }
+
+    /**
+     * 按照可见性重新分配预算，在管理线程上调用
+     */
+    private void rebalance(){
+        long now = SystemClock.uptimeMillis();
+        if(pressureFactor < 1 && now - pressureTime >= PRESSURE_RECOVER_TIME){
+            pressureFactor = 1;
+        }
+        long budget = (long) (totalBudget * pressureFactor);
+        long poolSize = budget / POOL_BUDGET_DIVIDER;
+        long retainedSize = budget / RETAINED_BUDGET_DIVIDER;
+        // 复用池和保留的分块先从总预算里分出去，剩下的才分给页面
+        long cacheBudget = budget - poolSize - retainedSize;
+
+        // 显示状态在其他线程修改，先取一次，保证权重的总和和分配时一致
+        boolean[] isShown = new boolean[helpers.size()];
+        int totalWeight = 0;
+        for(int i = 0; i < isShown.length; ++i){
+            isShown[i] = helpers.get(i).isShown();
+            totalWeight += isShown[i] ? VISIBLE_WEIGHT : INVISIBLE_WEIGHT;
+        }
+        for(int i = 0; i < isShown.length; ++i){
+            int weight = isShown[i] ? VISIBLE_WEIGHT : INVISIBLE_WEIGHT;
+            helpers.get(i).resizeCache(Math.max(MIN_CACHE_SIZE, cacheBudget * weight / totalWeight));
+        }
+        TileBitmapPool.getInstance().setMaxSize(poolSize);
+        RetainedTileCache.getInstance().setMaxSize(retainedSize);
+
+        handler.removeCallbacks(recoverRunnable);
+        if(pressureFactor < 1){
+            handler.postDelayed(recoverRunnable, pressureTime + PRESSURE_RECOVER_TIME - now);
+        }
+    }
+}
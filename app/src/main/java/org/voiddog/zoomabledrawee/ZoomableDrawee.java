@@ -185,6 +185,12 @@ public class ZoomableDrawee extends SimpleDraweeView{
         return res;
     }
 
+    /**
+     * 双击缩放开始的时候回调
+     * @param targetInnerBounds 预测的缩放结束时图片在视图上的位置
+     */
+    protected void onAutoScaleTarget(RectF targetInnerBounds){}
+
     /**
      * 重置
      */
@@ -287,5 +293,10 @@ public class ZoomableDrawee extends SimpleDraweeView{
         public void invalidate() {
             ZoomableDrawee.this.invalidate();
         }
+
+        @Override
+        protected void onAutoScaleTarget(RectF targetInnerBounds) {
+            ZoomableDrawee.this.onAutoScaleTarget(targetInnerBounds);
+        }
     };
 }
@@ -3,6 +3,7 @@ package org.voiddog.zoomabledrawee;
 import android.app.Application;
 import android.content.Context;
 import android.graphics.Matrix;
+import android.graphics.PointF;
 import android.graphics.RectF;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -28,6 +29,8 @@ public abstract class ZoomableGestureHelper {
     private static final double MIN_RESET_POSITION = 0.05;
     // 缩放开始速度
     private static final double AUTO_SCALE_VELOCITY = 10;
+    // 小于这个速度 (dp/s) 不再预测滑动的终点
+    private static final double MIN_PREDICT_VELOCITY = 50;
 
     // 系数常数
     // 滑动时候的摩擦力
@@ -83,11 +86,21 @@ public abstract class ZoomableGestureHelper {
     private boolean autoScale = false;
     private double autoScaleCenterX, autoScaleCenterY;
 
+    /**
+     * 自动缩放结束时内部视图的位置
+     */
+    private RectF autoScaleTargetBounds = new RectF();
+
     /**
      * 时间间隔累计器
      */
     private double timeAccumulator = 0;
 
+    /**
+     * 弹簧的起点和终点，避免每次计算分配内存
+     */
+    private double[] tmpSpringPosition = new double[2];
+
     // viewpager 在 requestDisallowTouch 的时候 开始为true 中途返回false，此时会crash,
     // 原因为我多指头的时候，如果index为0的手指抬起来了，但是index为1的手指还在，此时disallow设置为false，会导致
     // viewpager的onIntercept去获取index为0的手指
@@ -179,36 +192,18 @@ public abstract class ZoomableGestureHelper {
         yPhysicsState.setFriction(FRICTION * getDensity());
 
         // 计算x轴方向
-        if (getWidth(bounds) > getWidth(innerBounds)){
-            xPosition = (innerBounds.right + innerBounds.left) / 2.0f;
-            xEndPosition = (bounds.right + bounds.left) / 2.0f;
-        } else {
-            if (innerBounds.left > bounds.left){
-                xPosition = innerBounds.left;
-                xEndPosition = bounds.left;
-            } else if (innerBounds.right < bounds.right){
-                xPosition = innerBounds.right;
-                xEndPosition = bounds.right;
-            } else {
-                xPhysicsState.setFriction(FLING_FRICTION * getDensity());
-            }
+        if (computeSpringPosition(bounds.left, bounds.right, innerBounds.left, innerBounds.right, tmpSpringPosition)){
+            xPhysicsState.setFriction(FLING_FRICTION * getDensity());
         }
+        xPosition = tmpSpringPosition[0];
+        xEndPosition = tmpSpringPosition[1];
 
         // 计算y轴方向
-        if (getHeight(bounds) > getHeight(innerBounds)){
-            yPosition = (innerBounds.bottom + innerBounds.top) / 2.0f;
-            yEndPosition = (bounds.top + bounds.bottom) / 2.0f;
-        } else {
-            if (innerBounds.top > bounds.top){
-                yPosition = innerBounds.top;
-                yEndPosition = bounds.top;
-            } else if (innerBounds.bottom < bounds.bottom){
-                yPosition = innerBounds.bottom;
-                yEndPosition = bounds.bottom;
-            } else {
-                yPhysicsState.setFriction(FLING_FRICTION * getDensity());
-            }
+        if (computeSpringPosition(bounds.top, bounds.bottom, innerBounds.top, innerBounds.bottom, tmpSpringPosition)){
+            yPhysicsState.setFriction(FLING_FRICTION * getDensity());
         }
+        yPosition = tmpSpringPosition[0];
+        yEndPosition = tmpSpringPosition[1];
 
         double newXPosition = xPosition;
         double newYPosition = yPosition;
@@ -263,8 +258,40 @@ public abstract class ZoomableGestureHelper {
                 || sgn(scale - startScale) != 0;
     }
 
+    /**
+     * 预测当前的滑动停下来的时候，内部视图相对现在的偏移
+     * 在边界内自由滑动的时候按照摩擦力减速计算滑动距离，并限制在边界内；
+     * 超出边界的时候弹簧会把视图拉回到 compute 中计算的终点
+     * @param offset 输出偏移
+     * @return 没有在滑动的时候返回 false
+     */
+    public boolean predictFlingOffset(PointF offset){
+        offset.set(0, 0);
+        if(isDrag || !isEnabled){
+            return false;
+        }
+
+        double xVelocity = xPhysicsState.getVelocity(), yVelocity = yPhysicsState.getVelocity();
+        double minVelocity = MIN_PREDICT_VELOCITY * getDensity();
+        if(Math.abs(xVelocity) < minVelocity && Math.abs(yVelocity) < minVelocity){
+            return false;
+        }
+
+        getBounds(bounds);
+        getInnerBounds(innerBounds);
+        offset.x = (float) predictAxisOffset(bounds.left, bounds.right, innerBounds.left, innerBounds.right, xVelocity);
+        offset.y = (float) predictAxisOffset(bounds.top, bounds.bottom, innerBounds.top, innerBounds.bottom, yVelocity);
+        return true;
+    }
+
     public abstract void requestDisallowInterceptTouchEvent(boolean disallow);
 
+    /**
+     * 双击开始自动缩放的时候回调，可以提前准备缩放结束时需要的内容
+     * @param targetInnerBounds 预测的缩放结束时内部视图的位置
+     */
+    protected void onAutoScaleTarget(RectF targetInnerBounds){}
+
     /**
      * 获取到外部容器的范围
      * @return
@@ -282,6 +309,75 @@ public abstract class ZoomableGestureHelper {
      */
     public abstract void invalidate();
 
+    /**
+     * 计算一个方向上弹簧的起点和终点
+     * @param boundsStart 外部容器的起始边界
+     * @param boundsEnd 外部容器的结束边界
+     * @param innerStart 内部视图的起始边界
+     * @param innerEnd 内部视图的结束边界
+     * @param out out[0] 为起点，out[1] 为终点
+     * @return 是否处于边界内自由滑动
+     */
+    private boolean computeSpringPosition(float boundsStart, float boundsEnd,
+                                          float innerStart, float innerEnd, double[] out){
+        out[0] = out[1] = 0;
+        if (boundsEnd - boundsStart > innerEnd - innerStart){
+            out[0] = (innerEnd + innerStart) / 2.0f;
+            out[1] = (boundsEnd + boundsStart) / 2.0f;
+            return false;
+        }
+
+        if (innerStart > boundsStart){
+            out[0] = innerStart;
+            out[1] = boundsStart;
+        } else if (innerEnd < boundsEnd){
+            out[0] = innerEnd;
+            out[1] = boundsEnd;
+        } else {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 预测一个方向上停下来时的偏移
+     * @return
+     */
+    private double predictAxisOffset(float boundsStart, float boundsEnd,
+                                     float innerStart, float innerEnd, double velocity){
+        if (!computeSpringPosition(boundsStart, boundsEnd, innerStart, innerEnd, tmpSpringPosition)){
+            return tmpSpringPosition[1] - tmpSpringPosition[0];
+        }
+
+        // 只有摩擦力时 dv/dt = -friction * v，滑动的总距离为 v / friction
+        double offset = velocity / (FLING_FRICTION * getDensity());
+        return Math.max(boundsEnd - innerEnd, Math.min(boundsStart - innerStart, offset));
+    }
+
+    /**
+     * 预测自动缩放结束时内部视图的位置
+     * 缩放大于1的时候弹簧没有拉力，只有摩擦力，缩放的变化量为 v / friction，小于1的时候会被拉回到1，
+     * 缩放结束之后平移的弹簧会把视图拉回边界以内
+     * @param startScale 当前缩放
+     * @param velocity 缩放的初速度
+     * @param out 输出位置
+     */
+    private void computeAutoScaleTarget(double startScale, double velocity, RectF out){
+        double endScale = Math.max(1, startScale + velocity / FRICTION);
+        float factor = (float) (endScale / startScale);
+        float centerX = (float) autoScaleCenterX, centerY = (float) autoScaleCenterY;
+        out.set(centerX + (innerBounds.left - centerX) * factor,
+                centerY + (innerBounds.top - centerY) * factor,
+                centerX + (innerBounds.right - centerX) * factor,
+                centerY + (innerBounds.bottom - centerY) * factor);
+
+        computeSpringPosition(bounds.left, bounds.right, out.left, out.right, tmpSpringPosition);
+        float dx = (float) (tmpSpringPosition[1] - tmpSpringPosition[0]);
+        computeSpringPosition(bounds.top, bounds.bottom, out.top, out.bottom, tmpSpringPosition);
+        float dy = (float) (tmpSpringPosition[1] - tmpSpringPosition[0]);
+        out.offset(dx, dy);
+    }
+
     private boolean isAtReset(SpringPhysicsState physicsState, double positionDis){
         return Math.abs(physicsState.getVelocity()) < getDensity() * MIN_RESET_VELOCITY &&
                 (Math.abs(positionDis) < getDensity() * MIN_RESET_POSITION || sgn(physicsState.getTension()) == 0);
@@ -394,6 +490,11 @@ public abstract class ZoomableGestureHelper {
             } else {
                 scalePhysicsState.setVelocity(AUTO_SCALE_VELOCITY);
             }
+
+            if(getWidth(bounds) != 0 && getHeight(bounds) != 0 && scale > 0){
+                computeAutoScaleTarget(scale, scalePhysicsState.getVelocity(), autoScaleTargetBounds);
+                onAutoScaleTarget(autoScaleTargetBounds);
+            }
             invalidate();
 
             return true;
@@ -0,0 +1,127 @@
+package org.voiddog.zoomabledrawee;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConcurrentIntTable 的单元测试，和 HashMap 对照
+ *
+ * @author agent
+ * @since 2026-10-18 07:10
+ */
+
+
+public class ConcurrentIntTableTest {
+
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        Random random = new Random(2);
+        ConcurrentIntTable<Integer> table = new ConcurrentIntTable<>();
+        HashMap<Integer, Integer> reference = new HashMap<>();
+        for(int i = 0; i < 1000000; ++i){
+            int key = random.nextInt(2000) - 1000;
+            int op = random.nextInt(6);
+            if(op < 2){
+                assertEquals(reference.put(key, i), table.put(key, i));
+            } else if(op < 3){
+                assertEquals(reference.remove(key), table.remove(key));
+            } else if(op < 4){
+                Integer pre = reference.get(key);
+                if(pre == null){
+                    reference.put(key, i);
+                }
+                assertEquals(pre, table.putIfAbsent(key, i));
+            } else {
+                assertEquals(reference.get(key), table.get(key));
+            }
+            if(random.nextInt(100000) == 0){
+                table.clear();
+                reference.clear();
+            }
+            assertEquals(reference.size(), table.size());
+        }
+    }
+
+    @Test
+    public void removeWithExpect_onlyRemovesSameValue() throws Exception {
+        ConcurrentIntTable<String> table = new ConcurrentIntTable<>();
+        String value = new String("a");
+        table.put(1, value);
+        assertFalse(table.remove(1, new String("a")));
+        assertSame(value, table.get(1));
+        assertTrue(table.remove(1, value));
+        assertNull(table.get(1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void negativeAndHighBitKeys() throws Exception {
+        ConcurrentIntTable<Integer> table = new ConcurrentIntTable<>();
+        int[] keys = {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 31 << 27};
+        for(int key : keys){
+            table.put(key, key);
+        }
+        for(int key : keys){
+            assertEquals(Integer.valueOf(key), table.get(key));
+        }
+    }
+
+    /**
+     * 无锁读先读 value 再读 key，只要槽位的 key 在同一张表里不变，就不会读到别的 key 的 value，
+     * 这里检查每次写操作之后，没有重建的话已经用过的槽位的 key 都没有变
+     */
+    @Test
+    public void slotKeys_neverChangeWithinTable() throws Exception {
+        Random random = new Random(7);
+        ConcurrentIntTable<Integer> table = new ConcurrentIntTable<>();
+        for(int i = 0; i < 200000; ++i){
+            Integer[] before = table.snapshotSlotKeys();
+            int rebuildCount = table.rebuildCount;
+
+            int key = random.nextInt(512);
+            if(random.nextBoolean()){
+                table.put(key, key);
+            } else {
+                table.remove(key);
+            }
+
+            if(table.rebuildCount != rebuildCount){
+                continue;
+            }
+            Integer[] after = table.snapshotSlotKeys();
+            for(int slot = 0; slot < before.length; ++slot){
+                if(before[slot] != null){
+                    assertEquals(before[slot], after[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除之后再放入其它 key，删除标记不会被复用
+     */
+    @Test
+    public void removedSlot_notReusedByOtherKey() throws Exception {
+        ConcurrentIntTable<Integer> table = new ConcurrentIntTable<>();
+        table.put(1, 1);
+        table.remove(1);
+        for(int key = 2; key < 10; ++key){
+            table.put(key, key);
+        }
+        Integer[] keys = table.snapshotSlotKeys();
+        int count = 0;
+        for(Integer key : keys){
+            if(key != null && key == 1){
+                ++count;
+            }
+        }
+        assertEquals(1, count);
+        assertNull(table.get(1));
+        table.put(1, 11);
+        assertEquals(Integer.valueOf(11), table.get(1));
+    }
+}
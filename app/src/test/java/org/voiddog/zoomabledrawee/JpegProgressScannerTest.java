@@ -0,0 +1,146 @@
+package org.voiddog.zoomabledrawee;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * JpegProgressScanner 的单元测试，用拼出来的 JPEG 段模拟逐步到达的数据
+ *
+ * @author agent
+ * @since 2026-10-18 07:15
+ */
+
+
+public class JpegProgressScannerTest {
+
+    /**
+     * 只暴露前 size 个字节的数据
+     */
+    private static class PrefixSource implements JpegProgressScanner.Source {
+        private final byte[] data;
+        private int size;
+
+        PrefixSource(byte[] data){
+            this.data = data;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void read(int offset, byte[] buffer, int bufferOffset, int length) {
+            assertTrue(offset + length <= size);
+            System.arraycopy(data, offset, buffer, bufferOffset, length);
+        }
+    }
+
+    /**
+     * 64x48，YUV420，MCU 为 16x16，每行 4 个 MCU
+     * @param restartInterval 0 表示没有 DRI 段
+     */
+    private static ByteArrayOutputStream header(int restartInterval){
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(os, 0xff, 0xd8);
+        // APP0
+        write(os, 0xff, 0xe0, 0x00, 0x06, 'J', 'F', 'I', 'F');
+        // SOF0：精度、高、宽、3 个分量
+        write(os, 0xff, 0xc0, 0x00, 17, 8, 0, 48, 0, 64, 3,
+                1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+        if(restartInterval > 0){
+            write(os, 0xff, 0xdd, 0x00, 0x04, restartInterval >> 8, restartInterval & 0xff);
+        }
+        // SOS，3 个分量在同一个 scan 里
+        write(os, 0xff, 0xda, 0x00, 12, 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0);
+        return os;
+    }
+
+    private static void write(ByteArrayOutputStream os, int... bytes){
+        for(int b : bytes){
+            os.write(b);
+        }
+    }
+
+    @Test
+    public void restartMarkers_countCompleteRows() throws Exception {
+        ByteArrayOutputStream os = header(4);
+        int headerLength = os.size();
+        // 每个 restart interval 正好是一行 MCU，压缩数据里有填充过的 FF 00
+        write(os, 0x12, 0xff, 0x00, 0x34, 0xff, 0xd0);
+        int firstRst = os.size();
+        write(os, 0x56, 0xff, 0xff, 0xd1);
+        int secondRst = os.size();
+        write(os, 0x78, 0xff, 0xd9);
+        byte[] data = os.toByteArray();
+
+        JpegProgressScanner scanner = new JpegProgressScanner();
+        PrefixSource source = new PrefixSource(data);
+        source.size = headerLength;
+        assertEquals(0, scanner.scan(source));
+        assertEquals(64, scanner.getWidth());
+        assertEquals(48, scanner.getHeight());
+
+        // 数据里的 FF 00 不算标记
+        source.size = firstRst - 1;
+        assertEquals(0, scanner.scan(source));
+        source.size = firstRst;
+        assertEquals(16, scanner.scan(source));
+        source.size = secondRst;
+        assertEquals(32, scanner.scan(source));
+        source.size = data.length;
+        assertEquals(48, scanner.scan(source));
+    }
+
+    @Test
+    public void noRestartInterval_unsupported() throws Exception {
+        ByteArrayOutputStream os = header(0);
+        write(os, 0x12, 0x34, 0xff, 0xd9);
+        byte[] data = os.toByteArray();
+
+        JpegProgressScanner scanner = new JpegProgressScanner();
+        PrefixSource source = new PrefixSource(data);
+        source.size = data.length;
+        assertEquals(JpegProgressScanner.UNSUPPORTED, scanner.scan(source));
+        assertFalse(scanner.isSupported());
+    }
+
+    @Test
+    public void progressiveFrame_unsupported() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(os, 0xff, 0xd8, 0xff, 0xc2, 0x00, 11, 8, 0, 48, 0, 64, 1, 1, 0x11, 0);
+        byte[] data = os.toByteArray();
+
+        JpegProgressScanner scanner = new JpegProgressScanner();
+        PrefixSource source = new PrefixSource(data);
+        source.size = data.length;
+        assertEquals(JpegProgressScanner.UNSUPPORTED, scanner.scan(source));
+    }
+
+    @Test
+    public void truncatedMidMarker_resumesOnNextScan() throws Exception {
+        ByteArrayOutputStream os = header(4);
+        int headerLength = os.size();
+        write(os, 0x12, 0xff, 0xd0, 0x34, 0xff, 0xd1);
+        byte[] data = os.toByteArray();
+
+        // 逐字节到达，包括停在段头中间和 FF 与 RSTn 之间
+        JpegProgressScanner scanner = new JpegProgressScanner();
+        PrefixSource source = new PrefixSource(data);
+        for(int size = 0; size <= data.length; ++size){
+            source.size = size;
+            int rows = scanner.scan(source);
+            assertTrue(scanner.isSupported());
+            if(size < headerLength + 3){
+                assertEquals(0, rows);
+            } else if(size < data.length){
+                assertEquals(16, rows);
+            } else {
+                assertEquals(32, rows);
+            }
+        }
+    }
+}
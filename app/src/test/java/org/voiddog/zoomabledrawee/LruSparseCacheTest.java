@@ -0,0 +1,181 @@
+package org.voiddog.zoomabledrawee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * LruSparseCache 的单元测试，和按访问顺序排列的 LinkedHashMap 对照
+ *
+ * @author agent
+ * @since 2026-10-18 07:10
+ */
+
+
+public class LruSparseCacheTest {
+
+    /**
+     * value 就是占用的大小
+     */
+    private static class SizedCache extends LruSparseCache<Integer> {
+        SizedCache(long maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(int key, Integer value) {
+            return value;
+        }
+    }
+
+    /**
+     * LinkedHashMap 实现的参照，超出大小的时候按访问顺序移除
+     */
+    private static class ReferenceCache {
+        final LinkedHashMap<Integer, Integer> map = new LinkedHashMap<>(16, 0.75f, true);
+        final List<Integer> removed = new ArrayList<>();
+        long maxSize;
+
+        ReferenceCache(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        void put(int key, int value){
+            Integer pre = map.put(key, value);
+            if(pre != null && pre != value){
+                removed.add(key);
+            }
+            trim();
+        }
+
+        void trim(){
+            long size = 0;
+            for(int value : map.values()){
+                size += value;
+            }
+            Iterator<Map.Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+            while (size >= maxSize && iterator.hasNext()){
+                Map.Entry<Integer, Integer> entry = iterator.next();
+                size -= entry.getValue();
+                removed.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    @Test
+    public void randomOperations_matchLinkedHashMap() throws Exception {
+        Random random = new Random(1);
+        SizedCache cache = new SizedCache(1000);
+        ReferenceCache reference = new ReferenceCache(1000);
+        final List<Integer> removed = new ArrayList<>();
+        cache.setOnEntryRemovedListener(new LruSparseCache.OnEntryRemovedListener<Integer>() {
+            @Override
+            public void onEntryRemoved(int key, Integer value) {
+                removed.add(key);
+            }
+        });
+
+        for(int i = 0; i < 500000; ++i){
+            int key = random.nextInt(300) * (random.nextBoolean() ? 1 : -7919);
+            int op = random.nextInt(20);
+            if(op < 8){
+                int value = 1 + random.nextInt(40);
+                cache.put(key, value);
+                reference.put(key, value);
+            } else if(op < 18){
+                assertEquals(reference.map.get(key), cache.get(key));
+            } else if(op == 18){
+                cache.remove(key);
+                if(reference.map.remove(key) != null){
+                    reference.removed.add(key);
+                }
+            } else {
+                long maxSize = 200 + random.nextInt(1200);
+                cache.resize(maxSize);
+                reference.maxSize = maxSize;
+                reference.trim();
+            }
+            assertEquals(reference.removed, removed);
+            reference.removed.clear();
+            removed.clear();
+        }
+
+        cache.clear();
+        for(int i = 0; i < 300; ++i){
+            assertNull(cache.get(i));
+        }
+    }
+
+    @Test
+    public void clearWithReceiver_bypassesListener() throws Exception {
+        SizedCache cache = new SizedCache(1000);
+        final List<Integer> removed = new ArrayList<>();
+        cache.setOnEntryRemovedListener(new LruSparseCache.OnEntryRemovedListener<Integer>() {
+            @Override
+            public void onEntryRemoved(int key, Integer value) {
+                removed.add(key);
+            }
+        });
+        cache.put(1, 10);
+        cache.put(2, 20);
+
+        final HashMap<Integer, Integer> received = new HashMap<>();
+        cache.clear(new LruSparseCache.OnEntryRemovedListener<Integer>() {
+            @Override
+            public void onEntryRemoved(int key, Integer value) {
+                received.put(key, value);
+            }
+        });
+        assertTrue(removed.isEmpty());
+        assertEquals(Integer.valueOf(10), received.get(1));
+        assertEquals(Integer.valueOf(20), received.get(2));
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void evictionPolicy_removesHighestScoreAmongColdest() throws Exception {
+        SizedCache cache = new SizedCache(50);
+        cache.setEvictionPolicy(new LruSparseCache.EvictionPolicy() {
+            @Override
+            public long getEvictionScore(int key) {
+                return key == 3 ? 1 : 0;
+            }
+        });
+        for(int key = 1; key <= 4; ++key){
+            cache.put(key, 10);
+        }
+        // 超出大小，最久没有访问的是 1，但是 3 的分数最高
+        cache.put(5, 10);
+        assertNull(cache.get(3));
+
+        // 分数相同的时候移除最久没有访问的
+        cache.put(6, 10);
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(2));
+    }
+
+    @Test
+    public void evictionPolicy_neverRemovesJustInserted() throws Exception {
+        SizedCache cache = new SizedCache(25);
+        cache.setEvictionPolicy(new LruSparseCache.EvictionPolicy() {
+            @Override
+            public long getEvictionScore(int key) {
+                return key;
+            }
+        });
+        cache.put(1, 10);
+        cache.put(2, 10);
+        cache.put(9, 10);
+        assertNotNull(cache.get(9));
+        assertNull(cache.get(2));
+    }
+}